@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded thread-safe cache of calculated maps keyed by the parameters they
+ * have been calculated for. The total number of grid points is bounded and
+ * the least recently used maps are evicted first
+ *
+ * @author Ruslan Feshchenko
+ * @version 1.0
+ */
+public final class ChartCache {
+
+    private final long maxPoints;
+    private long points = 0;
+    private final Map<List<?>, ChartParam> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor
+     *
+     * @param maxPoints maximal total number of grid points
+     */
+    public ChartCache(long maxPoints) {
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Returning the map calculated for given parameters
+     *
+     * @param key list of the parameters
+     * @return the map or null
+     */
+    public synchronized ChartParam get(List<?> key) {
+        return map.get(key);
+    }
+
+    /**
+     * Whether a map for given parameters is cached. The recency of the map is
+     * not changed
+     *
+     * @param key list of the parameters
+     * @return
+     */
+    public synchronized boolean contains(List<?> key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Storing a map. The map must not be modified afterwards. The least
+     * recently used maps are evicted while the total number of points exceeds
+     * the bound, the last stored map is always kept
+     *
+     * @param key list of the parameters
+     * @param data
+     */
+    public synchronized void put(List<?> key, ChartParam data) {
+        ChartParam old = map.put(key, data);
+        if (old != null) {
+            points -= size(old);
+        }
+        points += size(data);
+        Iterator<ChartParam> it = map.values().iterator();
+        while (points > maxPoints && map.size() > 1) {
+            ChartParam eldest = it.next();
+            if (eldest != data) {
+                points -= size(eldest);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removing all maps
+     */
+    public synchronized void clear() {
+        map.clear();
+        points = 0;
+    }
+
+    /**
+     * Number of cached maps
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Number of grid points of a map
+     *
+     * @param data
+     * @return
+     */
+    private static long size(ChartParam data) {
+        return (long) data.getxsize() * data.getysize();
+    }
+}
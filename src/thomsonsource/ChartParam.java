@@ -16,6 +16,18 @@
  */
 package thomsonsource;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
 /**
  * Class for color chart parameters
  *
@@ -24,6 +36,33 @@ package thomsonsource;
  */
 public abstract class ChartParam {
 
+    /**
+     * Maximal number of grid points along each side of a tile evaluated by a
+     * single task
+     */
+    public static final int TILE_SIZE = 64;
+
+    /**
+     * Relative precision of the interpolated radial profile
+     */
+    public static final double RADIAL_PRECISION = 1e-5;
+
+    /**
+     * Maximal number of intervals of the radial profile
+     */
+    public static final int MAX_RADIAL_NODES = 1 << 22;
+
+    /**
+     * Minimal number of the initial cells of the adaptive mode along the
+     * longer side of the grid
+     */
+    public static final int ADAPTIVE_CELLS = 32;
+
+    /**
+     * Maximal size of the initial cells of the adaptive mode in grid points
+     */
+    public static final int MAX_ADAPTIVE_STRIDE = 16;
+
     /**
      * Constructor
      */
@@ -49,17 +88,12 @@ public abstract class ChartParam {
      */
     public void setup(int xsize, int ysize, double xstep, double ystep,
             double xoffset, double yoffset) throws InterruptedException {
+        this.key = null;
         this.udata = new double[xsize][ysize];
-        double x, y;
-        for (int j = 0; j < xsize; j++) {
-            for (int p = 0; p < ysize; p++) {
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new InterruptedException();
-                }
-                x = xoffset + xstep * (j - xsize / 2);
-                y = yoffset + ystep * (p - ysize / 2);
-                this.udata[j][p] = func(x, y);
-            }
+        if (radial && xoffset == 0 && yoffset == 0) {
+            radialFill(this.udata, xstep, ystep, () -> Thread.currentThread().isInterrupted());
+        } else {
+            gridFill(xsize, ysize, xstep, ystep, xoffset, yoffset);
         }
         this.umax = this.udata[xsize / 2][ysize / 2];
         this.xoffset = xoffset;
@@ -70,6 +104,814 @@ public abstract class ChartParam {
         this.ysize = ysize;
     }
 
+    /**
+     * Serial point by point evaluation of the data
+     *
+     * @param xsize
+     * @param ysize
+     * @param xstep
+     * @param ystep
+     * @param xoffset
+     * @param yoffset
+     * @throws java.lang.InterruptedException
+     */
+    private void gridFill(int xsize, int ysize, double xstep, double ystep,
+            double xoffset, double yoffset) throws InterruptedException {
+        boolean xs = xsymmetric && xoffset == 0, ys = ysymmetric && yoffset == 0;
+        int[] cols = indices(xsize, xs), rows = indices(ysize, ys);
+        double[] y = new double[rows.length], u = new double[rows.length];
+        for (int p = 0; p < rows.length; p++) {
+            y[p] = yoffset + ystep * (rows[p] - ysize / 2);
+        }
+        for (int j : cols) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            func(xoffset + xstep * (j - xsize / 2), y, u);
+            for (int p = 0; p < rows.length; p++) {
+                this.udata[j][rows[p]] = u[p];
+            }
+        }
+        mirror(this.udata, xs, ys);
+    }
+
+    /**
+     * Filling the data of a radial function from its interpolated profile.
+     * The profile func(0, sqrt(s)) is evaluated on a uniform grid in the
+     * squared radius s, which needs no square roots in the interpolation. The
+     * grid is refined by halving until linear interpolation at the interval
+     * midpoints is accurate to RADIAL_PRECISION relative to the maximal value
+     *
+     * @param u array for the data
+     * @param xstep
+     * @param ystep
+     * @param cancelled cancellation flag checked between refinements
+     * @throws java.lang.InterruptedException
+     */
+    private void radialFill(double[][] u, double xstep, double ystep,
+            BooleanSupplier cancelled) throws InterruptedException {
+        int xsize = u.length, ysize = xsize == 0 ? 0 : u[0].length;
+        double xm = xstep * Math.max(xsize / 2, xsize - 1 - xsize / 2);
+        double ym = ystep * Math.max(ysize / 2, ysize - 1 - ysize / 2);
+        double smax = xm * xm + ym * ym;
+        int m = Math.max(2, Math.max(xsize, ysize));
+        double h = smax == 0 ? 1 : smax / m;
+        double[] r = new double[m + 1], f = new double[m + 1];
+        for (int k = 0; k <= m; k++) {
+            r[k] = Math.sqrt(k * h);
+        }
+        func(0, r, f);
+        while (true) {
+            if (cancelled.getAsBoolean()) {
+                throw new InterruptedException();
+            }
+            //Evaluating the profile at the midpoints and estimating the interpolation error
+            double[] rm = new double[m], fm = new double[m];
+            for (int k = 0; k < m; k++) {
+                rm[k] = Math.sqrt((k + 0.5) * h);
+            }
+            func(0, rm, fm);
+            double err = 0, scale = 0;
+            for (int k = 0; k < m; k++) {
+                err = Math.max(err, Math.abs(fm[k] - (f[k] + f[k + 1]) / 2));
+                scale = Math.max(scale, Math.max(Math.abs(f[k]), Math.abs(fm[k])));
+            }
+            double[] g = new double[2 * m + 1];
+            for (int k = 0; k < m; k++) {
+                g[2 * k] = f[k];
+                g[2 * k + 1] = fm[k];
+            }
+            g[2 * m] = f[m];
+            f = g;
+            m *= 2;
+            h /= 2;
+            if (err <= RADIAL_PRECISION * scale || 2 * m > MAX_RADIAL_NODES) {
+                break;
+            }
+        }
+        //Interpolating in one half of the grid and mirroring the other
+        double ih = 1 / h;
+        double[] y2 = new double[ysize];
+        for (int p = 0; p < ysize; p++) {
+            double y = ystep * (p - ysize / 2);
+            y2[p] = y * y * ih;
+        }
+        for (int j : indices(xsize, true)) {
+            double x = xstep * (j - xsize / 2), x2 = x * x * ih;
+            double[] uj = u[j];
+            for (int p = 0; p < ysize; p++) {
+                double t = x2 + y2[p];
+                int k = Math.min((int) t, m - 1);
+                uj[p] = f[k] + (t - k) * (f[k + 1] - f[k]);
+            }
+        }
+        mirror(u, true, false);
+    }
+
+    /**
+     * Declaring mirror symmetries of the data. A symmetric axis is evaluated
+     * only for non-negative values when its offset is zero and the rest is
+     * mirrored
+     *
+     * @param xsymmetric whether func(-x, y) = func(x, y)
+     * @param ysymmetric whether func(x, -y) = func(x, y)
+     */
+    public void setSymmetry(boolean xsymmetric, boolean ysymmetric) {
+        this.xsymmetric = xsymmetric;
+        this.ysymmetric = ysymmetric;
+    }
+
+    /**
+     * Declaring that the data depend only on the distance from the origin,
+     * func(x, y) = func(0, sqrt(x * x + y * y)). If the offsets are zero the
+     * data are interpolated from a radial profile instead of being evaluated
+     * point by point
+     *
+     * @param radial
+     */
+    public void setRadial(boolean radial) {
+        this.radial = radial;
+    }
+
+    /**
+     * Setting the number of coarse levels calculated by the parallel setup
+     * before the full resolution one. The level k has every 2^(levels - k + 1)
+     * point along each axis and reuses the points of the previous levels
+     *
+     * @param levels number of coarse levels or 0 for none
+     */
+    public void setLevels(int levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Setting a listener called by the parallel setup when a level has been
+     * published. Coarse levels are published upsampled to the full grid and
+     * remain the data if the calculation is cancelled. The listener is called
+     * from a worker thread with the stride of the level, 1 for the full
+     * resolution
+     *
+     * @param listener listener or null
+     */
+    public void setPreviewListener(IntConsumer listener) {
+        this.previewListener = listener;
+    }
+
+    /**
+     * Setting the key of the parameters the data have been calculated for and
+     * the scale factor the data are proportional to. The key is reset by
+     * every setup
+     *
+     * @param key list of the parameters or null
+     * @param scale
+     */
+    public void setKey(List<?> key, double scale) {
+        this.key = key;
+        this.scale = scale;
+    }
+
+    /**
+     * Whether the data have been calculated for given parameters
+     *
+     * @param key list of the parameters
+     * @return
+     */
+    public boolean isFor(List<?> key) {
+        return this.key != null && this.key.equals(key);
+    }
+
+    /**
+     * Rescaling the data in place to a new scale factor
+     *
+     * @param scale
+     */
+    public void rescale(double scale) {
+        double f = scale / this.scale;
+        if (f != 1) {
+            for (double[] column : udata) {
+                for (int p = 0; p < column.length; p++) {
+                    column[p] *= f;
+                }
+            }
+            this.umax *= f;
+        }
+        this.scale = scale;
+    }
+
+    /**
+     * Copying the data, the grid parameters and the key of another object.
+     * The data arrays are copied, so both objects can be rescaled
+     * independently
+     *
+     * @param data
+     */
+    public void copy(ChartParam data) {
+        double[][] u = new double[data.udata.length][];
+        for (int i = 0; i < u.length; i++) {
+            u[i] = data.udata[i].clone();
+        }
+        this.udata = u;
+        this.umax = data.umax;
+        this.xoffset = data.xoffset;
+        this.yoffset = data.yoffset;
+        this.xstep = data.xstep;
+        this.ystep = data.ystep;
+        this.xsize = data.xsize;
+        this.ysize = data.ysize;
+        this.key = data.key;
+        this.scale = data.scale;
+    }
+
+    /**
+     * Setting the tolerance of the adaptive mode of the parallel setup. The
+     * grid is then covered by square cells which are subdivided only where
+     * the bilinear interpolation from the cell corners misses the value at
+     * the cell center by more than the tolerance relative to the maximal
+     * absolute value. The other cells are filled by interpolation
+     *
+     * @param tolerance relative tolerance or 0 to evaluate every point
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Indices of the grid points to evaluate along an axis. For a symmetric
+     * axis the points mirrored by 2 * (size / 2) - i are skipped
+     *
+     * @param size
+     * @param symmetric
+     * @return
+     */
+    private static int[] indices(int size, boolean symmetric) {
+        int c = size / 2, first = symmetric ? 2 * c - size + 1 : 0, last = symmetric ? c : 0;
+        int[] ind = new int[size - (last - first)];
+        for (int i = 0, k = 0; i < size; i++) {
+            if (i < first || i >= last) {
+                ind[k++] = i;
+            }
+        }
+        return ind;
+    }
+
+    /**
+     * Filling the skipped grid points of symmetric axes by mirroring
+     *
+     * @param u
+     * @param xs
+     * @param ys
+     */
+    private static void mirror(double[][] u, boolean xs, boolean ys) {
+        int xsize = u.length, ysize = xsize == 0 ? 0 : u[0].length;
+        int cx = xsize / 2, cy = ysize / 2;
+        if (ys) {
+            for (int j = 0; j < xsize; j++) {
+                for (int p = 2 * cy - ysize + 1; p < cy; p++) {
+                    u[j][p] = u[j][2 * cy - p];
+                }
+            }
+        }
+        if (xs) {
+            for (int j = 2 * cx - xsize + 1; j < cx; j++) {
+                System.arraycopy(u[2 * cx - j], 0, u[j], 0, ysize);
+            }
+        }
+    }
+
+    /**
+     * Parallel version of setup. The grid is split into tiles of at most
+     * TILE_SIZE x TILE_SIZE points evaluated by fork/join tasks. Declared
+     * symmetries and radial dependence are used as in the serial version. The
+     * data are replaced only when all tiles or a coarse level are complete
+     *
+     * @param execs fork/join pool running the tiles
+     * @param xsize
+     * @param ysize
+     * @param xstep
+     * @param ystep
+     * @param xoffset
+     * @param yoffset
+     * @throws java.lang.InterruptedException
+     */
+    public void setup(ForkJoinPool execs, int xsize, int ysize, double xstep, double ystep,
+            double xoffset, double yoffset) throws InterruptedException {
+        await(submit(execs, xsize, ysize, xstep, ystep, xoffset, yoffset));
+    }
+
+    /**
+     * Starting the parallel calculation of the data without waiting for it.
+     * Several maps can be calculated concurrently and awaited together by the
+     * await method. Cancelling the returned future stops the remaining tiles
+     *
+     * @param execs fork/join pool running the tiles
+     * @param xsize
+     * @param ysize
+     * @param xstep
+     * @param ystep
+     * @param xoffset
+     * @param yoffset
+     * @return
+     */
+    public Future<?> submit(ForkJoinPool execs, int xsize, int ysize, double xstep, double ystep,
+            double xoffset, double yoffset) {
+        this.key = null;
+        return execs.submit(new Grid(xsize, ysize, xstep, ystep, xoffset, yoffset));
+    }
+
+    /**
+     * Waiting for several parallel calculations. If the calling thread is
+     * interrupted or a calculation fails all calculations are cancelled
+     *
+     * @param futures futures returned by submit
+     * @throws java.lang.InterruptedException
+     */
+    public static void await(Future<?>... futures) throws InterruptedException {
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | CancellationException ex) {
+            for (Future<?> f : futures) {
+                f.cancel(true);
+            }
+            throw new InterruptedException();
+        } catch (ExecutionException ex) {
+            for (Future<?> f : futures) {
+                f.cancel(true);
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * The root task of a parallel calculation. It owns the new data array and
+     * publishes it with the grid parameters when all tiles are complete. If
+     * coarse levels are requested they are calculated first and published as
+     * previews
+     */
+    private class Grid extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int xsize, ysize, levels;
+        private final double xstep, ystep, xoffset, yoffset, tolerance;
+        private final boolean xs, ys;
+        private final int[] cols, rows;
+        private final double[][] u;
+        private final IntConsumer listener;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        Grid(int xsize, int ysize, double xstep, double ystep, double xoffset, double yoffset) {
+            this.xsize = xsize;
+            this.ysize = ysize;
+            this.xstep = xstep;
+            this.ystep = ystep;
+            this.xoffset = xoffset;
+            this.yoffset = yoffset;
+            this.levels = ChartParam.this.levels;
+            this.tolerance = ChartParam.this.tolerance;
+            this.listener = previewListener;
+            this.u = new double[xsize][ysize];
+            this.xs = xsymmetric && xoffset == 0;
+            this.ys = ysymmetric && yoffset == 0;
+            this.cols = indices(xsize, xs);
+            this.rows = indices(ysize, ys);
+        }
+
+        @Override
+        protected void compute() {
+            if (radial && xoffset == 0 && yoffset == 0) {
+                try {
+                    radialFill(u, xstep, ystep, cancelled::get);
+                } catch (InterruptedException ex) {
+                    cancelled.set(true);
+                }
+            } else if (tolerance > 0) {
+                new Adaptive(this).run();
+                if (cancelled.get()) {
+                    throw new CancellationException();
+                }
+                publish(u);
+                if (listener != null) {
+                    listener.accept(1);
+                }
+                return;
+            } else {
+                int cx = xsize / 2, cy = ysize / 2;
+                for (int st = 1 << levels; st >= 1 && !cancelled.get(); st /= 2) {
+                    int[] lc = level(cols, cx, st, 0), lr = level(rows, cy, st, 0);
+                    if (st == 1 << levels) {
+                        new Tile(this, lc, lr, 0, lc.length, 0, lr.length).invoke();
+                    } else {
+                        //Points of the coarser level are reused
+                        int[] oc = level(cols, cx, 2 * st, 0), nc = level(cols, cx, st, 2 * st),
+                                nr = level(rows, cy, st, 2 * st);
+                        invokeAll(new Tile(this, oc, nr, 0, oc.length, 0, nr.length),
+                                new Tile(this, nc, lr, 0, nc.length, 0, lr.length));
+                    }
+                    if (st > 1 && !cancelled.get()) {
+                        publish(preview(st));
+                        if (listener != null) {
+                            listener.accept(st);
+                        }
+                    }
+                }
+            }
+            if (cancelled.get()) {
+                throw new CancellationException();
+            }
+            mirror(u, xs, ys);
+            publish(u);
+            if (listener != null) {
+                listener.accept(1);
+            }
+        }
+
+        /**
+         * The data of a coarse level on the full grid. Every point takes the
+         * value of the nearest point of the level
+         *
+         * @param st stride of the level
+         * @return
+         */
+        private double[][] preview(int st) {
+            int[] sx = nearest(xsize, st, xs), sy = nearest(ysize, st, ys);
+            double[][] v = new double[xsize][ysize];
+            for (int j = 0; j < xsize; j++) {
+                double[] uj = u[sx[j]], vj = v[j];
+                for (int p = 0; p < ysize; p++) {
+                    vj[p] = uj[sy[p]];
+                }
+            }
+            return v;
+        }
+
+        /**
+         * Publishing data and the grid parameters
+         *
+         * @param v
+         */
+        private void publish(double[][] v) {
+            udata = v;
+            umax = v[xsize / 2][ysize / 2];
+            ChartParam.this.xoffset = xoffset;
+            ChartParam.this.yoffset = yoffset;
+            ChartParam.this.xstep = xstep;
+            ChartParam.this.ystep = ystep;
+            ChartParam.this.xsize = xsize;
+            ChartParam.this.ysize = ysize;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled.set(true);
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * The adaptive evaluation of a grid. The cells live on a lattice which is
+     * aligned with the grid center and extended beyond the grid so that all
+     * cells are whole. For a symmetric axis only its non-negative half is
+     * covered
+     */
+    private class Adaptive {
+
+        private final Grid grid;
+        private final int s0, xa, ya, cx, cy;
+        private final double[][] e;
+        private final boolean[][] known;
+        private double scale = 0;
+
+        Adaptive(Grid grid) {
+            this.grid = grid;
+            this.cx = grid.xsize / 2;
+            this.cy = grid.ysize / 2;
+            this.s0 = Integer.highestOneBit(Math.max(1, Math.min(MAX_ADAPTIVE_STRIDE,
+                    Math.max(grid.xsize, grid.ysize) / ADAPTIVE_CELLS)));
+            int hx = s0 * ((Math.max(cx, grid.xsize - 1 - cx) + s0 - 1) / s0);
+            int hy = s0 * ((Math.max(cy, grid.ysize - 1 - cy) + s0 - 1) / s0);
+            this.xa = grid.xs ? cx : cx - hx;
+            this.ya = grid.ys ? cy : cy - hy;
+            this.e = new double[cx + hx - xa + 1][cy + hy - ya + 1];
+            this.known = new boolean[e.length][e[0].length];
+        }
+
+        /**
+         * Refining the cells level by level and rasterizing the result to
+         * the grid
+         */
+        void run() {
+            int w = e.length, h = e[0].length;
+            //The initial lattice
+            List<int[]> points = new ArrayList<>();
+            for (int i = 0; i < w; i += s0) {
+                for (int k = 0; k < h; k += s0) {
+                    add(points, i, k);
+                }
+            }
+            List<int[]> active = new ArrayList<>();
+            for (int i = 0; i + s0 < w; i += s0) {
+                for (int k = 0; k + s0 < h; k += s0) {
+                    active.add(new int[]{i, k});
+                }
+            }
+            if (!evaluate(points)) {
+                return;
+            }
+            for (int st = s0 / 2; st >= 1; st /= 2) {
+                //Evaluating the cell centers and testing the interpolation error
+                points.clear();
+                for (int[] c : active) {
+                    add(points, c[0] + st, c[1] + st);
+                }
+                if (!evaluate(points)) {
+                    return;
+                }
+                boolean[] refined = new boolean[active.size()];
+                List<int[]> next = new ArrayList<>();
+                points.clear();
+                for (int n = 0; n < active.size(); n++) {
+                    int i = active.get(n)[0], k = active.get(n)[1];
+                    double err = e[i + st][k + st] - (e[i][k] + e[i + 2 * st][k] + e[i][k + 2 * st] + e[i + 2 * st][k + 2 * st]) / 4;
+                    if (Math.abs(err) > grid.tolerance * scale) {
+                        refined[n] = true;
+                        add(points, i + st, k);
+                        add(points, i, k + st);
+                        add(points, i + 2 * st, k + st);
+                        add(points, i + st, k + 2 * st);
+                        next.add(new int[]{i, k});
+                        next.add(new int[]{i + st, k});
+                        next.add(new int[]{i, k + st});
+                        next.add(new int[]{i + st, k + st});
+                    }
+                }
+                if (!evaluate(points)) {
+                    return;
+                }
+                //Interpolating in the accepted cells
+                for (int n = 0; n < active.size(); n++) {
+                    if (!refined[n]) {
+                        interpolate(active.get(n)[0], active.get(n)[1], 2 * st);
+                    }
+                }
+                active = next;
+                if (st > 1) {
+                    double[][] v = new double[grid.xsize][grid.ysize];
+                    rasterize(st, v);
+                    grid.publish(v);
+                    if (grid.listener != null) {
+                        grid.listener.accept(st);
+                    }
+                }
+            }
+            rasterize(1, grid.u);
+        }
+
+        /**
+         * Adding a point to evaluate unless its value is already known
+         *
+         * @param points
+         * @param i
+         * @param k
+         */
+        private void add(List<int[]> points, int i, int k) {
+            if (!known[i][k]) {
+                known[i][k] = true;
+                points.add(new int[]{i, k});
+            }
+        }
+
+        /**
+         * Evaluating points in parallel, column by column
+         *
+         * @param points
+         * @return false if the calculation has been cancelled
+         */
+        private boolean evaluate(List<int[]> points) {
+            if (grid.cancelled.get()) {
+                return false;
+            }
+            points.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+            //Grouping the points by columns
+            int[] cols = new int[points.size()];
+            int[][] rows = new int[points.size()][];
+            int ncols = 0, n = 0;
+            while (n < points.size()) {
+                int m = n + 1;
+                while (m < points.size() && points.get(m)[0] == points.get(n)[0]) {
+                    m++;
+                }
+                cols[ncols] = points.get(n)[0];
+                rows[ncols] = new int[m - n];
+                for (int q = n; q < m; q++) {
+                    rows[ncols][q - n] = points.get(q)[1];
+                }
+                ncols++;
+                n = m;
+            }
+            new Columns(this, cols, rows, 0, ncols).invoke();
+            for (int[] pt : points) {
+                scale = Math.max(scale, Math.abs(e[pt[0]][pt[1]]));
+            }
+            return !grid.cancelled.get();
+        }
+
+        /**
+         * Filling the unknown points of a cell by bilinear interpolation
+         *
+         * @param i0
+         * @param k0
+         * @param size
+         */
+        private void interpolate(int i0, int k0, int size) {
+            double f00 = e[i0][k0], f10 = e[i0 + size][k0], f01 = e[i0][k0 + size], f11 = e[i0 + size][k0 + size];
+            for (int i = 0; i <= size; i++) {
+                double a = (double) i / size;
+                for (int k = 0; k <= size; k++) {
+                    if (!known[i0 + i][k0 + k]) {
+                        double b = (double) k / size;
+                        e[i0 + i][k0 + k] = (1 - a) * ((1 - b) * f00 + b * f01) + a * ((1 - b) * f10 + b * f11);
+                        known[i0 + i][k0 + k] = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copying the lattice to the grid. Each grid point takes the value of
+         * the nearest lattice point with a given stride, mirrored points are
+         * taken from the covered half
+         *
+         * @param st
+         * @param v array for the grid data
+         */
+        private void rasterize(int st, double[][] v) {
+            int[] sx = new int[grid.xsize], sy = new int[grid.ysize];
+            for (int j = 0; j < grid.xsize; j++) {
+                int i = (grid.xs ? cx + Math.abs(j - cx) : j) - xa;
+                sx[j] = st * (int) Math.round((double) i / st);
+            }
+            for (int p = 0; p < grid.ysize; p++) {
+                int k = (grid.ys ? cy + Math.abs(p - cy) : p) - ya;
+                sy[p] = st * (int) Math.round((double) k / st);
+            }
+            for (int j = 0; j < grid.xsize; j++) {
+                double[] ej = e[sx[j]], uj = v[j];
+                for (int p = 0; p < grid.ysize; p++) {
+                    uj[p] = ej[sy[p]];
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluation of lattice points of the adaptive mode grouped by columns
+     */
+    private class Columns extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Adaptive ad;
+        private final int[] cols;
+        private final int[][] rows;
+        private final int lo, hi;
+
+        Columns(Adaptive ad, int[] cols, int[][] rows, int lo, int hi) {
+            this.ad = ad;
+            this.cols = cols;
+            this.rows = rows;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            Grid grid = ad.grid;
+            if (grid.cancelled.get()) {
+                return;
+            }
+            int count = 0;
+            for (int n = lo; n < hi && count <= TILE_SIZE; n++) {
+                count += rows[n].length;
+            }
+            if (hi - lo > 1 && count > TILE_SIZE) {
+                int m = (lo + hi) >>> 1;
+                invokeAll(new Columns(ad, cols, rows, lo, m), new Columns(ad, cols, rows, m, hi));
+                return;
+            }
+            try {
+                for (int n = lo; n < hi; n++) {
+                    int i = cols[n];
+                    int[] r = rows[n];
+                    double[] y = new double[r.length], u = new double[r.length];
+                    for (int q = 0; q < r.length; q++) {
+                        y[q] = grid.yoffset + grid.ystep * (r[q] + ad.ya - grid.ysize / 2);
+                    }
+                    func(grid.xoffset + grid.xstep * (i + ad.xa - grid.xsize / 2), y, u);
+                    for (int q = 0; q < r.length; q++) {
+                        ad.e[i][r[q]] = u[q];
+                    }
+                }
+            } catch (InterruptedException ex) {
+                grid.cancelled.set(true);
+            }
+        }
+    }
+
+    /**
+     * Indices of a level. An index belongs to the level with stride st if
+     * its distance from the center is a multiple of st
+     *
+     * @param ind indices to select from
+     * @param c index of the center
+     * @param st stride of the level
+     * @param skip stride of the indices to exclude or 0
+     * @return
+     */
+    private static int[] level(int[] ind, int c, int st, int skip) {
+        return Arrays.stream(ind).filter(i -> (i - c) % st == 0 && (skip == 0 || (i - c) % skip != 0)).toArray();
+    }
+
+    /**
+     * For every index of an axis, the nearest evaluated index of a level. For
+     * a symmetric axis mirrored indices are mapped to the evaluated half
+     *
+     * @param size
+     * @param st stride of the level
+     * @param symmetric
+     * @return
+     */
+    private static int[] nearest(int size, int st, boolean symmetric) {
+        int c = size / 2;
+        int[] nr = new int[size];
+        for (int i = 0; i < size; i++) {
+            int n = c + st * (int) Math.round((double) (i - c) / st);
+            n = n >= size ? n - st : (n < 0 ? n + st : n);
+            nr[i] = symmetric && n < c && 2 * c - n < size ? 2 * c - n : n;
+        }
+        return nr;
+    }
+
+    /**
+     * A rectangular block of the evaluated grid points given by column and
+     * row indices. Tiles larger than TILE_SIZE are split in halves along the
+     * longer side
+     */
+    private class Tile extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Grid grid;
+        private final int[] cols, rows;
+        private final int x0, x1, y0, y1;
+
+        Tile(Grid grid, int[] cols, int[] rows, int x0, int x1, int y0, int y1) {
+            this.grid = grid;
+            this.cols = cols;
+            this.rows = rows;
+            this.x0 = x0;
+            this.x1 = x1;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (grid.cancelled.get() || x0 >= x1 || y0 >= y1) {
+                return;
+            }
+            if (x1 - x0 > TILE_SIZE || y1 - y0 > TILE_SIZE) {
+                if (x1 - x0 >= y1 - y0) {
+                    int xm = (x0 + x1) >>> 1;
+                    invokeAll(new Tile(grid, cols, rows, x0, xm, y0, y1), new Tile(grid, cols, rows, xm, x1, y0, y1));
+                } else {
+                    int ym = (y0 + y1) >>> 1;
+                    invokeAll(new Tile(grid, cols, rows, x0, x1, y0, ym), new Tile(grid, cols, rows, x0, x1, ym, y1));
+                }
+                return;
+            }
+            double[] y = new double[y1 - y0], u = new double[y1 - y0];
+            for (int p = 0; p < y.length; p++) {
+                y[p] = grid.yoffset + grid.ystep * (rows[y0 + p] - grid.ysize / 2);
+            }
+            try {
+                for (int k = x0; k < x1; k++) {
+                    if (grid.cancelled.get()) {
+                        return;
+                    }
+                    int j = cols[k];
+                    func(grid.xoffset + grid.xstep * (j - grid.xsize / 2), y, u);
+                    for (int p = 0; p < u.length; p++) {
+                        grid.u[j][rows[y0 + p]] = u[p];
+                    }
+                }
+            } catch (InterruptedException ex) {
+                grid.cancelled.set(true);
+            }
+        }
+    }
+
     /**
      * Returning the array with data
      *
@@ -144,6 +986,25 @@ public abstract class ChartParam {
 
     public abstract double func(double x, double y);
 
+    /**
+     * Method calculating a whole column of Z data for a given x. The default
+     * implementation calls func(x, y) for every y, subclasses may override it
+     * with a batch calculation
+     *
+     * @param x
+     * @param y array of y values
+     * @param u array for the results
+     * @throws java.lang.InterruptedException
+     */
+    public void func(double x, double[] y, double[] u) throws InterruptedException {
+        for (int p = 0; p < y.length; p++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            u[p] = func(x, y[p]);
+        }
+    }
+
     private double[][] udata;
     private double umax;
     private double xoffset = 0.0;
@@ -152,4 +1013,12 @@ public abstract class ChartParam {
     private double ystep;
     private int xsize;
     private int ysize;
+    private boolean xsymmetric = false;
+    private boolean ysymmetric = false;
+    private boolean radial = false;
+    private int levels = 0;
+    private IntConsumer previewListener = null;
+    private double tolerance = 0;
+    private List<?> key = null;
+    private double scale = 1;
 }
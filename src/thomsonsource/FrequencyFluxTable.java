@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+/**
+ * A table of the flux density without electron spread per unit total flux as
+ * a function of the polar angle and the X-ray energy, for the mean electron
+ * velocity along the z axis. The density depends on the angle and energy
+ * through th = 2(1 - nz) and er = e / photonEnergy. It is the product of the
+ * spectral Gaussian exp(-K), which depends only on x = sqrt(er / (1 - er th /
+ * 4)), and of a smooth prefactor. The Gaussian is tabulated in x with a step
+ * giving the linear interpolation error PRECISION. The prefactor is tabulated
+ * in th and x on a uniform grid which is halved along one axis at a time
+ * until linear interpolation at the interval midpoints is accurate to
+ * PRECISION relative to the maximal density. The x axis is limited to the
+ * values where K does not exceed CUTOFF, the density is zero beyond. Points
+ * outside the tabulated ranges are evaluated directly
+ *
+ * @author Ruslan Feshchenko
+ * @version 1.0
+ */
+public final class FrequencyFluxTable {
+
+    /**
+     * Relative precision of the interpolation
+     */
+    public static final double PRECISION = 1e-5;
+
+    /**
+     * Maximal number of grid points of the prefactor
+     */
+    public static final int MAX_NODES = 1 << 20;
+
+    /**
+     * Value of the exponent K beyond which the density is neglected
+     */
+    public static final double CUTOFF = 25;
+
+    /**
+     * Initial number of intervals along each axis
+     */
+    private static final int INITIAL_INTERVALS = 8;
+
+    private final SourceSnapshot ss;
+    private final double norm, tmax, emin, emax, invPhotonEnergy, x0, kFactor, xlo, xhi;
+    private int mt, mx, mg;
+    private double ht, hx, hg, invHt, invHx, invHg;
+    private double[] f, g;
+
+    /**
+     * Constructor calculating the table
+     *
+     * @param ss snapshot of the source parameters
+     * @param tmax maximal squared tangent of the polar angle
+     * @param emin minimal X-ray energy
+     * @param emax maximal X-ray energy
+     * @throws java.lang.InterruptedException
+     */
+    public FrequencyFluxTable(SourceSnapshot ss, double tmax, double emin, double emax)
+            throws InterruptedException {
+        this.ss = ss;
+        this.norm = ss.getTotalFlux() == 0 ? 0 : 1 / ss.getTotalFlux();
+        this.tmax = tmax;
+        this.emin = emin;
+        this.emax = emax;
+        this.invPhotonEnergy = 1 / ss.getPhotonEnergy();
+        this.x0 = 2 * ss.getGamma();
+        this.kFactor = 1 / (4 * Math.pow(ss.getGamma() * ss.getDelgamma(), 2));
+        double thmax = th(tmax), dx = Math.sqrt(CUTOFF / kFactor);
+        double lo = x(Math.max(emin, 0), 0), hi = x(emax, thmax);
+        this.xlo = Math.max(lo, x0 - dx);
+        this.xhi = Double.isNaN(hi) ? x0 + dx : Math.min(hi, x0 + dx);
+        if (xlo < xhi) {
+            buildGaussian();
+            buildPrefactor(thmax);
+        }
+    }
+
+    /**
+     * Calculating the table of the Gaussian. The second derivative does not
+     * exceed 2 kFactor, so the step sqrt(4 PRECISION / kFactor) gives the
+     * interpolation error PRECISION
+     */
+    private void buildGaussian() {
+        mg = (int) Math.ceil((xhi - xlo) / Math.sqrt(4 * PRECISION / kFactor));
+        hg = (xhi - xlo) / mg;
+        g = new double[mg + 1];
+        for (int k = 0; k <= mg; k++) {
+            g[k] = gaussian(xlo + k * hg);
+        }
+        invHg = 1 / hg;
+    }
+
+    /**
+     * Calculating the grid values of the prefactor
+     *
+     * @param thmax maximal th
+     * @throws java.lang.InterruptedException
+     */
+    private void buildPrefactor(double thmax) throws InterruptedException {
+        mt = INITIAL_INTERVALS;
+        mx = INITIAL_INTERVALS;
+        ht = thmax == 0 ? 1 : thmax / mt;
+        hx = (xhi - xlo) / mx;
+        f = new double[(mt + 1) * (mx + 1)];
+        for (int i = 0; i <= mt; i++) {
+            for (int k = 0; k <= mx; k++) {
+                f[i * (mx + 1) + k] = prefactor(i * ht, xlo + k * hx);
+            }
+        }
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            /*
+             * Evaluating the midpoints along both axes and estimating the
+             * interpolation errors of the density
+             */
+            double[] ft = new double[mt * (mx + 1)], fx = new double[(mt + 1) * mx];
+            double errt = 0, errx = 0, scale = 0;
+            for (int i = 0; i < mt; i++) {
+                for (int k = 0; k <= mx; k++) {
+                    double v = prefactor((i + 0.5) * ht, xlo + k * hx), w = gaussian(xlo + k * hx);
+                    ft[i * (mx + 1) + k] = v;
+                    errt = Math.max(errt, w * Math.abs(v - (f[i * (mx + 1) + k] + f[(i + 1) * (mx + 1) + k]) / 2));
+                    scale = Math.max(scale, w * Math.abs(v));
+                }
+            }
+            for (int i = 0; i <= mt; i++) {
+                for (int k = 0; k < mx; k++) {
+                    double v = prefactor(i * ht, xlo + (k + 0.5) * hx), w = gaussian(xlo + (k + 0.5) * hx);
+                    fx[i * mx + k] = v;
+                    errx = Math.max(errx, w * Math.abs(v - (f[i * (mx + 1) + k] + f[i * (mx + 1) + k + 1]) / 2));
+                    scale = Math.max(scale, w * Math.abs(v));
+                }
+            }
+            if (Math.max(errt, errx) <= PRECISION * scale) {
+                break;
+            }
+            //Halving the axis with the larger error
+            if (errt >= errx) {
+                if ((2L * mt + 1) * (mx + 1) > MAX_NODES) {
+                    break;
+                }
+                double[] h = new double[(2 * mt + 1) * (mx + 1)];
+                for (int i = 0; i <= mt; i++) {
+                    System.arraycopy(f, i * (mx + 1), h, 2 * i * (mx + 1), mx + 1);
+                    if (i < mt) {
+                        System.arraycopy(ft, i * (mx + 1), h, (2 * i + 1) * (mx + 1), mx + 1);
+                    }
+                }
+                f = h;
+                mt *= 2;
+                ht /= 2;
+            } else {
+                if ((mt + 1) * (2L * mx + 1) > MAX_NODES) {
+                    break;
+                }
+                double[] h = new double[(mt + 1) * (2 * mx + 1)];
+                for (int i = 0; i <= mt; i++) {
+                    for (int k = 0; k < mx; k++) {
+                        h[i * (2 * mx + 1) + 2 * k] = f[i * (mx + 1) + k];
+                        h[i * (2 * mx + 1) + 2 * k + 1] = fx[i * mx + k];
+                    }
+                    h[i * (2 * mx + 1) + 2 * mx] = f[i * (mx + 1) + mx];
+                }
+                f = h;
+                mx *= 2;
+                hx /= 2;
+            }
+        }
+        invHt = 1 / ht;
+        invHx = 1 / hx;
+    }
+
+    /**
+     * The flux density per unit total flux for a given squared tangent of the
+     * polar angle and a given X-ray energy
+     *
+     * @param t squared tangent of the polar angle
+     * @param e X-ray energy
+     * @return
+     */
+    public double value(double t, double e) {
+        double th = th(t);
+        if (t > tmax || e < emin || e > emax) {
+            return direct(th, e);
+        }
+        double x = x(e, th);
+        if (Double.isNaN(x)) {
+            return direct(th, e);
+        }
+        if (f == null || !(x >= xlo && x <= xhi)) {
+            return 0;
+        }
+        double c = (x - xlo) * invHg;
+        int n = Math.min((int) c, mg - 1);
+        double a = th * invHt, b = (x - xlo) * invHx;
+        int i = Math.min((int) a, mt - 1), k = Math.min((int) b, mx - 1);
+        a -= i;
+        b -= k;
+        int l = i * (mx + 1) + k;
+        double f0 = f[l] + b * (f[l + 1] - f[l]);
+        double f1 = f[l + mx + 1] + b * (f[l + mx + 2] - f[l + mx + 1]);
+        return (f0 + a * (f1 - f0)) * (g[n] + (c - n) * (g[n + 1] - g[n]));
+    }
+
+    /**
+     * The spectral Gaussian exp(-K)
+     *
+     * @param x
+     * @return
+     */
+    private double gaussian(double x) {
+        return Math.exp(-(x - x0) * (x - x0) * kFactor);
+    }
+
+    /**
+     * The prefactor of the flux density per unit total flux at a grid point
+     *
+     * @param th
+     * @param x
+     * @return
+     */
+    private double prefactor(double th, double x) {
+        double x2 = x * x;
+        return direct(th, x2 / (1 + x2 * th / 4) * ss.getPhotonEnergy()) / gaussian(x);
+    }
+
+    /**
+     * Direct calculation of the flux density per unit total flux
+     *
+     * @param th
+     * @param e X-ray energy
+     * @return
+     */
+    private double direct(double th, double e) {
+        double nz = 1 - th / 2;
+        return norm * ss.directionFrequencyFluxNoSpread(Math.sqrt(th * (1 - th / 4)), 0, nz, 0, 0, 1, e);
+    }
+
+    /**
+     * The variable th = 2(1 - nz) for a given squared tangent of the polar
+     * angle
+     *
+     * @param t
+     * @return
+     */
+    private static double th(double t) {
+        double s = Math.sqrt(1 + t);
+        return 2 * t / (s * (1 + s));
+    }
+
+    /**
+     * The variable x for a given X-ray energy and th. NaN if 1 - er th / 4
+     * is not positive
+     *
+     * @param e X-ray energy
+     * @param th
+     * @return
+     */
+    private double x(double e, double th) {
+        double er = e * invPhotonEnergy, q = 1 - er * th / 4;
+        return q > 0 ? Math.sqrt(er / q) : Double.NaN;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+import javax.swing.SwingUtilities;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.CrosshairState;
+import org.jfree.chart.plot.PlotRenderingInfo;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.PaintScale;
+import org.jfree.chart.renderer.xy.AbstractXYItemRenderer;
+import org.jfree.chart.renderer.xy.XYItemRendererState;
+import org.jfree.data.Range;
+import org.jfree.data.xy.XYDataset;
+import org.jfree.ui.RectangleEdge;
+
+/**
+ * A renderer of color maps for vertical plots. The map is converted into an
+ * image once on a background thread and the visible part of the image is
+ * drawn scaled into the data area, so repaints do not depend on the number of
+ * grid points. The dataset only has to contain one item
+ *
+ * @author Ruslan Feshchenko
+ * @version 1.0
+ */
+public class HeatMapRenderer extends AbstractXYItemRenderer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Thread converting maps into images
+     */
+    private static final ExecutorService RASTERIZER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "HeatMapRenderer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong requests = new AtomicLong();
+    private transient volatile Raster raster = null;
+    private IntUnaryOperator mark = null;
+
+    /**
+     * An image of a map with its extent and paint scale
+     */
+    private static final class Raster {
+
+        private final BufferedImage image;
+        private final double xmin, xmax, ymin, ymax;
+        private final PaintScale scale;
+
+        Raster(BufferedImage image, double xmin, double xmax, double ymin, double ymax, PaintScale scale) {
+            this.image = image;
+            this.xmin = xmin;
+            this.xmax = xmax;
+            this.ymin = ymin;
+            this.ymax = ymax;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * Setting the map to draw. The image is created on a background thread and
+     * replaces the current one on the event dispatch thread. Images of older
+     * maps finishing later are discarded
+     *
+     * @param data
+     * @param scale
+     */
+    public void setData(ChartParam data, PaintScale scale) {
+        final double[][] u = data.getudata();
+        if (u == null) {
+            return;
+        }
+        final int xsize = data.getxsize(), ysize = data.getysize();
+        final double xmin = (-0.5 - xsize / 2) * data.getxstep() + data.getxoffset();
+        final double ymin = (-0.5 - ysize / 2) * data.getystep() + data.getyoffset();
+        final double xmax = xmin + xsize * data.getxstep(), ymax = ymin + ysize * data.getystep();
+        final long request = requests.incrementAndGet();
+        RASTERIZER.execute(() -> {
+            if (request != requests.get()) {
+                return;
+            }
+            BufferedImage image = createImage(u, xsize, ysize, scale);
+            SwingUtilities.invokeLater(() -> {
+                if (request == requests.get()) {
+                    raster = new Raster(image, xmin, xmax, ymin, ymax, scale);
+                    fireChangeEvent();
+                }
+            });
+        });
+    }
+
+    /**
+     * Converting a map into an image. The first index of the data is the
+     * image column, the second one is counted from the bottom of the image.
+     * Columns are converted at once by a jet paint scale
+     *
+     * @param u data
+     * @param xsize
+     * @param ysize
+     * @param scale
+     * @return
+     */
+    public static BufferedImage createImage(double[][] u, int xsize, int ysize, PaintScale scale) {
+        int[] pixels = new int[xsize * ysize];
+        int[] column = new int[ysize];
+        for (int i = 0; i < xsize; i++) {
+            if (scale instanceof JetPaintScale) {
+                ((JetPaintScale) scale).getARGB(u[i], column);
+            } else {
+                for (int k = 0; k < ysize; k++) {
+                    Paint paint = scale.getPaint(u[i][k]);
+                    column[k] = paint instanceof Color ? ((Color) paint).getRGB() : 0xffffffff;
+                }
+            }
+            for (int k = 0; k < ysize; k++) {
+                pixels[(ysize - 1 - k) * xsize + i] = column[k];
+            }
+        }
+        BufferedImage image = new BufferedImage(xsize, ysize, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, xsize, ysize, pixels, 0, xsize);
+        return image;
+    }
+
+    /**
+     * Setting the marked column of the map. The column is painted by the
+     * middle color of the paint scale
+     *
+     * @param mark function returning the marked column for a given number of
+     * columns or -1
+     */
+    public void setMark(IntUnaryOperator mark) {
+        this.mark = mark;
+        fireChangeEvent();
+    }
+
+    /**
+     * Returning the paint scale of the current image
+     *
+     * @return the paint scale or null
+     */
+    public PaintScale getPaintScale() {
+        Raster r = raster;
+        return r == null ? null : r.scale;
+    }
+
+    @Override
+    public void drawItem(Graphics2D g2, XYItemRendererState state, Rectangle2D dataArea, PlotRenderingInfo info,
+            XYPlot plot, ValueAxis domainAxis, ValueAxis rangeAxis, XYDataset dataset, int series, int item,
+            CrosshairState crosshairState, int pass) {
+        Raster r = raster;
+        if (r == null || series != 0 || item != 0) {
+            return;
+        }
+        int w = r.image.getWidth(), h = r.image.getHeight();
+        double dx = (r.xmax - r.xmin) / w, dy = (r.ymax - r.ymin) / h;
+        //Only the visible part of the image is drawn
+        double lx = Math.max(r.xmin, domainAxis.getLowerBound()), ux = Math.min(r.xmax, domainAxis.getUpperBound());
+        double ly = Math.max(r.ymin, rangeAxis.getLowerBound()), uy = Math.min(r.ymax, rangeAxis.getUpperBound());
+        if (lx >= ux || ly >= uy) {
+            return;
+        }
+        int sx0 = Math.max((int) Math.floor((lx - r.xmin) / dx), 0), sx1 = Math.min((int) Math.ceil((ux - r.xmin) / dx), w);
+        int sy0 = Math.max((int) Math.floor((r.ymax - uy) / dy), 0), sy1 = Math.min((int) Math.ceil((r.ymax - ly) / dy), h);
+        RectangleEdge xedge = plot.getDomainAxisEdge(), yedge = plot.getRangeAxisEdge();
+        int x0 = (int) Math.round(domainAxis.valueToJava2D(r.xmin + sx0 * dx, dataArea, xedge));
+        int x1 = (int) Math.round(domainAxis.valueToJava2D(r.xmin + sx1 * dx, dataArea, xedge));
+        int y0 = (int) Math.round(rangeAxis.valueToJava2D(r.ymax - sy0 * dy, dataArea, yedge));
+        int y1 = (int) Math.round(rangeAxis.valueToJava2D(r.ymax - sy1 * dy, dataArea, yedge));
+        Object interpolation = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2.drawImage(r.image, x0, y0, x1, y1, sx0, sy0, sx1, sy1, null);
+        if (interpolation != null) {
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        }
+        //The marked column
+        int column = mark == null ? -1 : mark.applyAsInt(w);
+        if (column >= sx0 && column < sx1) {
+            double mx0 = domainAxis.valueToJava2D(r.xmin + column * dx, dataArea, xedge);
+            double mx1 = domainAxis.valueToJava2D(r.xmin + (column + 1) * dx, dataArea, xedge);
+            g2.setPaint(r.scale.getPaint((r.scale.getLowerBound() + r.scale.getUpperBound()) / 2));
+            g2.fill(new Rectangle2D.Double(Math.min(mx0, mx1), Math.min(y0, y1),
+                    Math.max(Math.abs(mx1 - mx0), 1), Math.abs(y1 - y0)));
+        }
+    }
+
+    @Override
+    public Range findDomainBounds(XYDataset dataset) {
+        Raster r = raster;
+        return r == null ? super.findDomainBounds(dataset) : new Range(r.xmin, r.xmax);
+    }
+
+    @Override
+    public Range findRangeBounds(XYDataset dataset) {
+        Raster r = raster;
+        return r == null ? super.findRangeBounds(dataset) : new Range(r.ymin, r.ymax);
+    }
+}
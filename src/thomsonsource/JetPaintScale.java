@@ -23,7 +23,8 @@ import org.jfree.util.PublicCloneable;
 import org.jfree.chart.renderer.PaintScale;
 
 /**
- * A jet paint scale
+ * A jet paint scale. The colors are taken from a precomputed palette, so no
+ * objects are created per value. The scale can be linear or logarithmic
  *
  * @author Ruslan Feshchenko
  * @version 1.0
@@ -41,17 +42,65 @@ public class JetPaintScale
      */
     private double upperBound;
 
+    /**
+     * Whether the scale is logarithmic
+     */
+    private final boolean logarithmic;
+
+    /**
+     * Number of palette entries
+     */
+    public static final int PALETTE_SIZE = 4096;
+
+    /**
+     * Palette colors and their packed ARGB values from the lower to the upper
+     * bound
+     */
+    private static final Color[] PALETTE = new Color[PALETTE_SIZE];
+    private static final int[] PALETTE_ARGB = new int[PALETTE_SIZE];
+
+    static {
+        for (int j = 0; j < PALETTE_SIZE; j++) {
+            PALETTE[j] = Color.getHSBColor(1.0f - (float) j / (PALETTE_SIZE - 1), 1f, 0.8f);
+            PALETTE_ARGB[j] = PALETTE[j].getRGB();
+        }
+    }
+
+    /**
+     * Origin and factor mapping values or their logarithms to palette indices
+     */
+    private final double origin, factor;
+
     public JetPaintScale() {
         this(0.0, 1.0);
     }
 
     public JetPaintScale(double lowerBound, double upperBound) {
+        this(lowerBound, upperBound, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param lowerBound
+     * @param upperBound
+     * @param logarithmic whether the scale is logarithmic; the lower bound
+     * must then be positive
+     */
+    public JetPaintScale(double lowerBound, double upperBound, boolean logarithmic) {
         if (lowerBound >= upperBound) {
             throw new IllegalArgumentException(
                     "Requires lowerBound < upperBound.");
         }
+        if (logarithmic && lowerBound <= 0) {
+            throw new IllegalArgumentException(
+                    "Requires lowerBound > 0 for a logarithmic scale.");
+        }
         this.lowerBound = lowerBound;
         this.upperBound = upperBound;
+        this.logarithmic = logarithmic;
+        this.origin = logarithmic ? Math.log(lowerBound) : lowerBound;
+        this.factor = (PALETTE_SIZE - 1) / (logarithmic ? Math.log(upperBound) - origin : upperBound - lowerBound);
     }
 
     @Override
@@ -64,12 +113,55 @@ public class JetPaintScale
         return this.upperBound;
     }
 
+    /**
+     * Whether the scale is logarithmic
+     *
+     * @return
+     */
+    public boolean isLogarithmic() {
+        return logarithmic;
+    }
+
     @Override
     public Paint getPaint(double value) {
-        double v = Math.min(Math.max(value, this.lowerBound), this.upperBound);
-        float h = (float) (1.0f - (v - this.lowerBound) / (this.upperBound
-                - this.lowerBound));
-        return Color.getHSBColor(h, 1f, 0.8f);
+        return PALETTE[index(value)];
+    }
+
+    /**
+     * Returning the packed ARGB color of a value
+     *
+     * @param value
+     * @return
+     */
+    public int getARGB(double value) {
+        return PALETTE_ARGB[index(value)];
+    }
+
+    /**
+     * Converting an array of values to packed ARGB colors
+     *
+     * @param values
+     * @param argb array for the colors, at least as long as the values
+     */
+    public void getARGB(double[] values, int[] argb) {
+        for (int p = 0; p < values.length; p++) {
+            argb[p] = PALETTE_ARGB[index(values[p])];
+        }
+    }
+
+    /**
+     * The palette index of a value. Values out of the bounds and NaN are
+     * clamped
+     *
+     * @param value
+     * @return
+     */
+    private int index(double value) {
+        double t = ((logarithmic ? Math.log(value) : value) - origin) * factor;
+        if (!(t > 0)) {
+            return 0;
+        }
+        return t < PALETTE_SIZE - 1 ? (int) (t + 0.5) : PALETTE_SIZE - 1;
     }
 
     @Override
@@ -77,14 +169,14 @@ public class JetPaintScale
         if (obj == this) {
             return true;
         }
-
-        JetPaintScale that = (JetPaintScale) obj;
-
-        if (!(obj instanceof JetPaintScale) | (this.lowerBound != that.lowerBound) | (this.upperBound != that.upperBound)) {
+        if (!(obj instanceof JetPaintScale)) {
             return false;
         }
 
-        return true;
+        JetPaintScale that = (JetPaintScale) obj;
+
+        return this.lowerBound == that.lowerBound && this.upperBound == that.upperBound
+                && this.logarithmic == that.logarithmic;
     }
 
     @Override
@@ -240,6 +240,34 @@ public class LaserPulse implements Cloneable {
     public double[] getPolarization() {
         return new double [] {ksi1, ksi2, ksi3};
     }
+
+    /**
+     * Getting the first Stocks parameter of the laser
+     *
+     * @return ksi1
+     */
+    public double getKsi1() {
+        return ksi1;
+    }
+
+    /**
+     * Getting the second Stocks parameter of the laser
+     *
+     * @return ksi2
+     */
+    public double getKsi2() {
+        return ksi2;
+    }
+
+    /**
+     * Getting the third Stocks parameter of the laser
+     *
+     * @return ksi3
+     */
+    public double getKsi3() {
+        return ksi3;
+    }
+
     /**
      * Photon energy, J
      */
@@ -18,7 +18,14 @@ package thomsonsource;
 
 import java.util.function.Function;
 import org.la4j.vector.dense.BasicVector;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
 
 /**
  * Class for linear chart parameters
@@ -182,11 +189,102 @@ public class LinearChartParam {
         setExtr();
     }
 
+    /**
+     * A function of a swept parameter evaluated on a source
+     */
+    public interface SweepFunction {
+
+        /**
+         * Calculating the values of all curves at a given point
+         *
+         * @param source a clone of the source private to the calling thread
+         * @param x swept parameter
+         * @return the values or null if the values of the previous point are to
+         * be used
+         * @throws InterruptedException
+         */
+        double[] apply(ThompsonSource source, double x) throws InterruptedException;
+    }
+
+    /**
+     * Setting up data by a parallel parameter sweep. The points are
+     * distributed between the tasks dynamically and each task evaluates them
+     * on its own clone of the source, so the function may change the source
+     * parameters. The results are merged in the order of the points
+     *
+     * @param source the source to be cloned
+     * @param f function calculating the curves
+     * @param curves number of curves
+     * @param size
+     * @param step
+     * @param offset
+     * @param progress receiver of the fraction of calculated points
+     * @throws java.lang.InterruptedException
+     */
+    public void setup(ThompsonSource source, SweepFunction f, int curves, int size,
+            double step, double offset, DoubleConsumer progress) throws InterruptedException {
+        final double[][] results = new double[size][];
+        final AtomicInteger next = new AtomicInteger(), calculated = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        ExecutorService execs = source.getExecutor();
+        List<Future<Void>> futures = new ArrayList<>();
+        int ntasks = Math.max(1, Math.min(size, source.getThreadNumber()));
+        for (int t = 0; t < ntasks; t++) {
+            final ThompsonSource clone;
+            try {
+                clone = (ThompsonSource) source.clone();
+            } catch (CloneNotSupportedException ex) {
+                throw new RuntimeException(ex);
+            }
+            futures.add(execs.submit(() -> {
+                int i;
+                while (!cancelled.get() && (i = next.getAndIncrement()) < size) {
+                    results[i] = f.apply(clone, step * i + offset);
+                    progress.accept((double) calculated.incrementAndGet() / size);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> fut : futures) {
+                fut.get();
+            }
+        } catch (InterruptedException ex) {
+            cancelled.set(true);
+            for (Future<Void> fut : futures) {
+                fut.cancel(true);
+            }
+            throw ex;
+        } catch (ExecutionException ex) {
+            cancelled.set(true);
+            if (ex.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+        //Merging the results in order
+        this.size = size;
+        this.step = step;
+        this.offset = offset;
+        this.func = null;
+        this.data = new double[curves][size];
+        double[] previous = new double[curves];
+        for (int i = 0; i < size; i++) {
+            if (results[i] != null) {
+                previous = results[i];
+            }
+            for (int k = 0; k < curves; k++) {
+                this.data[k][i] = previous[k];
+            }
+        }
+        setExtr();
+    }
+
     /**
      * Calculating min and max values of data
      */
     protected void setExtr() {
-        int sz = (func != null) ? func.size() : 1;
+        int sz = data.length;
         double[] umaxt = new double[sz];
         double[] umint = new double[sz];
         for (int k = 0; k < sz; k++) {
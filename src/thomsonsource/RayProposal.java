@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+import java.util.SplittableRandom;
+
+/**
+ * Proposal distribution for the rejection sampling of rays. Positions follow
+ * the overlap of the electron bunch and laser pulse. They are drawn from a
+ * mixture of a Gaussian and a heavier-tailed Student distribution, so the
+ * ratio of the volume flux to the proposal density is bounded despite the
+ * hourglass tails. Directions follow the Compton angular scale 1/gamma inside the angular
+ * ranges, energies are uniform in the band allowed by the electron energy
+ * spread for a given direction and electron velocities follow the electron
+ * angular distribution
+ *
+ * @author Ruslan Feshchenko
+ * @version 1.0
+ */
+public final class RayProposal {
+
+    /**
+     * Inflation of the RMS widths of the position proposal relative to the
+     * Gaussian overlap
+     */
+    private static final double INFLATION = 1.5;
+
+    /**
+     * Weight of the Student component of the position proposal
+     */
+    private static final double TAIL_WEIGHT = 0.1;
+
+    /**
+     * Number of degrees of freedom of the Student component of the position
+     * proposal
+     */
+    private static final int TAIL_DEGREES = 3;
+
+    /**
+     * Normalization of the 3D Student distribution with TAIL_DEGREES degrees
+     * of freedom
+     */
+    private static final double TAIL_NORM = 4 / Math.sqrt(Math.PI) / Math.pow(3 * Math.PI, 1.5);
+
+    /**
+     * Half-width of the energy band in relative electron energy spreads
+     */
+    private static final double ENERGY_BAND = 6;
+
+    private final SourceSnapshot ss;
+    private final double xRange, yRange, minEnergy, maxEnergy;
+    private final boolean spread;
+    private final double xc, yc, zc, sx, l11, l21, l22, positionNorm;
+    private final double atx, aty, directionNorm;
+    private volatile double envelope, positionEnvelope;
+    private double positionIntegral;
+
+    /**
+     * Constructor
+     *
+     * @param ss parameters snapshot
+     * @param xRange angle range in the X-direction
+     * @param yRange angle range in the Y-direction
+     * @param minEnergy minimal ray energy
+     * @param maxEnergy maximal ray energy
+     * @param spread whether electron velocities are sampled
+     */
+    public RayProposal(SourceSnapshot ss, double xRange, double yRange,
+            double minEnergy, double maxEnergy, boolean spread) {
+        this.ss = ss;
+        this.xRange = xRange;
+        this.yRange = yRange;
+        this.minEnergy = minEnergy;
+        this.maxEnergy = maxEnergy;
+        this.spread = spread;
+        double[] g = ss.overlapGaussian();
+        double k2 = INFLATION * INFLATION;
+        this.xc = g[0];
+        this.yc = g[2];
+        this.zc = g[3];
+        this.sx = Math.sqrt(k2 * g[1]);
+        this.l11 = Math.sqrt(k2 * g[4]);
+        this.l21 = k2 * g[5] / l11;
+        this.l22 = Math.sqrt(k2 * g[6] - l21 * l21);
+        this.positionNorm = 1 / sx / l11 / l22;
+        double gamma = ss.getGamma();
+        this.atx = Math.atan(gamma * xRange);
+        this.aty = Math.atan(gamma * yRange);
+        this.directionNorm = gamma * gamma / 4 / atx / aty;
+    }
+
+    /**
+     * Drawing a ray from the proposal distribution. The position is written
+     * into the elements 0-2, the direction into the elements 3-5 and the
+     * energy into the element 10 of the ray in Shadow order
+     *
+     * @param rnd random stream
+     * @param ray array for the ray parameters
+     * @param v array for the normalized electron velocity
+     * @return the proposal density or zero if no energy in the energy range is
+     * allowed for the drawn direction
+     */
+    public double sample(SplittableRandom rnd, double[] ray, double[] v) {
+        double q = samplePosition(rnd, ray);
+        return q * sampleDirection(rnd, ray, v);
+    }
+
+    /**
+     * Drawing the position of a ray from the proposal distribution
+     *
+     * @param rnd random stream
+     * @param ray array for the ray parameters
+     * @return the proposal density of the position
+     */
+    public double samplePosition(SplittableRandom rnd, double[] ray) {
+        double u1 = ThompsonSource.nextGaussian(rnd), u2 = ThompsonSource.nextGaussian(rnd),
+                u3 = ThompsonSource.nextGaussian(rnd);
+        if (rnd.nextDouble() < TAIL_WEIGHT) {
+            //The Student component as a Gaussian divided by a chi variable
+            double chi2 = 0;
+            for (int i = 0; i < TAIL_DEGREES; i++) {
+                double g = ThompsonSource.nextGaussian(rnd);
+                chi2 += g * g;
+            }
+            double f = Math.sqrt(TAIL_DEGREES / chi2);
+            u1 *= f;
+            u2 *= f;
+            u3 *= f;
+        }
+        ray[0] = xc + sx * u1;
+        ray[2] = yc + l11 * u2;
+        ray[1] = zc + l21 * u2 + l22 * u3;
+        double r2 = u1 * u1 + u2 * u2 + u3 * u3;
+        return positionNorm * ((1 - TAIL_WEIGHT) * Math.exp(-r2 / 2) / Math.pow(2 * Math.PI, 1.5)
+                + TAIL_WEIGHT * TAIL_NORM * Math.pow(1 + r2 / TAIL_DEGREES, -(TAIL_DEGREES + 3) / 2.0));
+    }
+
+    /**
+     * Drawing the direction, energy and electron velocity of a ray from the
+     * proposal distribution
+     *
+     * @param rnd random stream
+     * @param ray array for the ray parameters
+     * @param v array for the normalized electron velocity
+     * @return the proposal density of the direction, energy and velocity or
+     * zero if no energy in the energy range is allowed for the drawn direction
+     */
+    public double sampleDirection(SplittableRandom rnd, double[] ray, double[] v) {
+        double gamma = ss.getGamma();
+        //Direction
+        double tx = Math.tan(atx * (2 * rnd.nextDouble() - 1)) / gamma;
+        double ty = Math.tan(aty * (2 * rnd.nextDouble() - 1)) / gamma;
+        double q = directionNorm / (1 + gamma * gamma * tx * tx) / (1 + gamma * gamma * ty * ty);
+        double norm = Math.sqrt(tx * tx + ty * ty + 1.0);
+        ray[3] = tx / norm;
+        ray[5] = ty / norm;
+        ray[4] = 1.0 / norm;
+        //Electron velocity
+        if (spread) {
+            v[0] = ss.getXSpread() * ThompsonSource.nextGaussian(rnd) / Math.sqrt(2);
+            v[1] = ss.getYSpread() * ThompsonSource.nextGaussian(rnd) / Math.sqrt(2);
+            v[2] = Math.sqrt(1 - v[0] * v[0] - v[1] * v[1]);
+            q *= ss.angleDistribution(v[0], v[1]);
+        } else {
+            v[0] = 0;
+            v[1] = 0;
+            v[2] = 1;
+        }
+        //Energy
+        double th = (1 - (ray[3] * v[0] + ray[5] * v[1] + ray[4] * v[2])) * 2;
+        double eMin = Math.max(minEnergy, bandEnergy(ss, -1, th));
+        double eMax = Math.min(maxEnergy, bandEnergy(ss, 1, th));
+        if (eMax <= eMin) {
+            return 0;
+        }
+        ray[10] = eMin + (eMax - eMin) * rnd.nextDouble();
+        return q / (eMax - eMin);
+    }
+
+    /**
+     * The X-ray energy at the lower or upper edge of the band allowed by the
+     * electron energy spread for a given angle factor
+     *
+     * @param ss parameters snapshot
+     * @param edge -1 for the lower edge and 1 for the upper edge
+     * @param th angle factor 2(1-nv)
+     * @return
+     */
+    static double bandEnergy(SourceSnapshot ss, int edge, double th) {
+        double s = 2 * ss.getGamma() * Math.max(1 + edge * ENERGY_BAND * ss.getDelgamma(), 0);
+        return s * s * ss.getPhotonEnergy() / (1 + s * s * th / 4);
+    }
+
+    /**
+     * The rejection envelope of the ray density or of its direction and
+     * energy part if positions are sampled separately
+     *
+     * @return
+     */
+    public double getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Setting the rejection envelope of the ray density or of its direction
+     * and energy part if positions are sampled separately
+     *
+     * @param envelope
+     */
+    public void setEnvelope(double envelope) {
+        this.envelope = envelope;
+    }
+
+    /**
+     * Raising the rejection envelope of the ray density or of its direction
+     * and energy part to at least a given value
+     *
+     * @param envelope
+     */
+    public synchronized void raiseEnvelope(double envelope) {
+        this.envelope = Math.max(this.envelope, envelope);
+    }
+
+    /**
+     * The rejection envelope of the volume flux
+     *
+     * @return
+     */
+    public double getPositionEnvelope() {
+        return positionEnvelope;
+    }
+
+    /**
+     * Setting the rejection envelope of the volume flux
+     *
+     * @param positionEnvelope
+     */
+    public void setPositionEnvelope(double positionEnvelope) {
+        this.positionEnvelope = positionEnvelope;
+    }
+
+    /**
+     * Raising the rejection envelope of the volume flux to at least a given
+     * value
+     *
+     * @param positionEnvelope
+     */
+    public synchronized void raisePositionEnvelope(double positionEnvelope) {
+        this.positionEnvelope = Math.max(this.positionEnvelope, positionEnvelope);
+    }
+
+    /**
+     * The integral of the volume flux
+     *
+     * @return
+     */
+    public double getPositionIntegral() {
+        return positionIntegral;
+    }
+
+    /**
+     * Setting the integral of the volume flux
+     *
+     * @param positionIntegral
+     */
+    public void setPositionIntegral(double positionIntegral) {
+        this.positionIntegral = positionIntegral;
+    }
+
+    /**
+     * Whether the proposal was built for given parameters
+     *
+     * @param ss
+     * @param xRange
+     * @param yRange
+     * @param minEnergy
+     * @param maxEnergy
+     * @param spread
+     * @return
+     */
+    public boolean isFor(SourceSnapshot ss, double xRange, double yRange,
+            double minEnergy, double maxEnergy, boolean spread) {
+        return this.ss == ss && this.xRange == xRange && this.yRange == yRange
+                && this.minEnergy == minEnergy && this.maxEnergy == maxEnergy && this.spread == spread;
+    }
+}
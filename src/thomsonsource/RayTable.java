@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Tabulated ray density for the ray generation without rejection. The density
+ * is a product of the volume flux and the spectral angular density, so two
+ * tables are built: one over position cells and one over direction and energy
+ * cells. Direction cells are uniform in the arctangent of the angle measured
+ * in 1/gamma and the energy cells of each direction cover only the band
+ * allowed by the electron energy spread. Cells are drawn by the alias method
+ * and rays are jittered uniformly inside the cells. The position grid is
+ * uniform and truncated, so the probability of positions outside it is
+ * estimated separately
+ *
+ * @author Ruslan Feshchenko
+ * @version 1.0
+ */
+public final class RayTable {
+
+    /**
+     * Half-size of the position grid in RMS sizes of the interaction region
+     */
+    private static final double POSITION_RANGE = 5;
+
+    /**
+     * Range of electron angles taken into account in the energy bands in
+     * electron angular spreads
+     */
+    private static final double SPREAD_RANGE = 4;
+
+    /**
+     * Relative precision of the spread integrals in the table
+     */
+    private static final double SPREAD_PRECISION = 1e-2;
+
+    private final SourceSnapshot ss;
+    private final double xRange, yRange, minEnergy, maxEnergy;
+    private final boolean spread;
+    private final int size;
+    private final double[] origin = new double[3], step = new double[3];
+    private final double[] txEdges, tyEdges, eLow, eStep;
+    private final double[] positionMass, directionMass, stocks;
+    private final SpreadCubature cubature;
+    private final RayProposal proposal;
+    private Alias positionAlias, directionAlias;
+    private double positionTotal, directionTotal, error, outside;
+
+    /**
+     * Constructor. The tables are filled by fillSlice and completed by build
+     *
+     * @param ss parameters snapshot
+     * @param xRange angle range in the X-direction
+     * @param yRange angle range in the Y-direction
+     * @param minEnergy minimal ray energy
+     * @param maxEnergy maximal ray energy
+     * @param spread whether the electron angular spread is taken into account
+     * @param size number of cells along each dimension
+     */
+    public RayTable(SourceSnapshot ss, double xRange, double yRange,
+            double minEnergy, double maxEnergy, boolean spread, int size) {
+        this.ss = ss;
+        this.xRange = xRange;
+        this.yRange = yRange;
+        this.minEnergy = minEnergy;
+        this.maxEnergy = maxEnergy;
+        this.spread = spread;
+        this.size = size;
+        double[] g = ss.overlapGaussian();
+        double[] center = {g[0], g[2], g[3]}, var = {g[1], g[4], g[6]};
+        for (int k = 0; k < 3; k++) {
+            double w = POSITION_RANGE * Math.sqrt(var[k]);
+            origin[k] = center[k] - w;
+            step[k] = 2 * w / size;
+        }
+        this.txEdges = angleEdges(xRange);
+        this.tyEdges = angleEdges(yRange);
+        this.eLow = new double[size * size];
+        this.eStep = new double[size * size];
+        this.positionMass = new double[size * size * size];
+        this.directionMass = new double[size * size * size];
+        this.stocks = new double[3 * size * size * size];
+        this.cubature = spread ? SpreadCubature.getCubature(ss.getXSpread(), ss.getYSpread(), SPREAD_PRECISION) : null;
+        this.proposal = new RayProposal(ss, xRange, yRange, minEnergy, maxEnergy, spread);
+    }
+
+    /**
+     * Cell edges of the angle tangent, uniform in the arctangent of the
+     * angle measured in 1/gamma
+     *
+     * @param range
+     * @return
+     */
+    private double[] angleEdges(double range) {
+        double gamma = ss.getGamma(), at = Math.atan(gamma * range);
+        double[] edges = new double[size + 1];
+        for (int i = 0; i <= size; i++) {
+            edges[i] = Math.tan(at * (2.0 * i / size - 1)) / gamma;
+        }
+        return edges;
+    }
+
+    /**
+     * Filling the cells of both tables with the first index i
+     *
+     * @param i
+     */
+    public void fillSlice(int i) {
+        double volume = step[0] * step[1] * step[2];
+        double x = origin[0] + (i + 0.5) * step[0];
+        for (int j = 0; j < size; j++) {
+            double y = origin[1] + (j + 0.5) * step[1];
+            for (int l = 0; l < size; l++) {
+                double f = ss.volumeFlux(x, y, origin[2] + (l + 0.5) * step[2]);
+                positionMass[(i * size + j) * size + l] = Double.isNaN(f) ? 0 : f * volume;
+            }
+        }
+        double[] pol = new double[ThompsonSource.NUMBER_OF_POL_PARAM];
+        double wx = spread ? SPREAD_RANGE * ss.getXSpread() : 0;
+        double wy = spread ? SPREAD_RANGE * ss.getYSpread() : 0;
+        double tx = (txEdges[i] + txEdges[i + 1]) / 2;
+        for (int j = 0; j < size; j++) {
+            int d = i * size + j;
+            //The energy band of the direction cell
+            double ax = minAbs(txEdges[i] - wx, txEdges[i + 1] + wx), bx = maxAbs(txEdges[i] - wx, txEdges[i + 1] + wx);
+            double ay = minAbs(tyEdges[j] - wy, tyEdges[j + 1] + wy), by = maxAbs(tyEdges[j] - wy, tyEdges[j + 1] + wy);
+            double eMin = Math.max(minEnergy, RayProposal.bandEnergy(ss, -1, bx * bx + by * by));
+            double eMax = Math.min(maxEnergy, RayProposal.bandEnergy(ss, 1, ax * ax + ay * ay));
+            if (eMax <= eMin) {
+                eLow[d] = minEnergy;
+                continue;
+            }
+            eLow[d] = eMin;
+            eStep[d] = (eMax - eMin) / size;
+            double ty = (tyEdges[j] + tyEdges[j + 1]) / 2;
+            double norm = Math.sqrt(tx * tx + ty * ty + 1.0);
+            double area = (txEdges[i + 1] - txEdges[i]) * (tyEdges[j + 1] - tyEdges[j]);
+            for (int l = 0; l < size; l++) {
+                int k = d * size + l;
+                polarization(tx / norm, ty / norm, 1.0 / norm, eMin + (l + 0.5) * eStep[d], pol);
+                if (pol[0] > 0) {
+                    directionMass[k] = pol[0] * area * eStep[d];
+                    for (int m = 0; m < 3; m++) {
+                        stocks[3 * k + m] = pol[m + 1] / pol[0];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Building the alias tables after all slices are filled
+     */
+    public void build() {
+        positionTotal = 0;
+        directionTotal = 0;
+        for (int k = 0; k < positionMass.length; k++) {
+            positionTotal += positionMass[k];
+            directionTotal += directionMass[k];
+        }
+        positionAlias = new Alias(positionMass, positionTotal);
+        directionAlias = new Alias(directionMass, directionTotal);
+    }
+
+    /**
+     * Drawing a ray from the tables. The position is written into the
+     * elements 0-2, the direction into the elements 3-5 and the energy into
+     * the element 10 of the ray in Shadow order. The normalized Stocks
+     * parameters of the cell are written into the polarization array
+     *
+     * @param rnd random stream
+     * @param ray array for the ray parameters
+     * @param polParam array for the polarization parameters
+     */
+    public void sample(SplittableRandom rnd, double[] ray, double[] polParam) {
+        int k = draw(rnd, ray);
+        polParam[0] = 1;
+        for (int m = 0; m < 3; m++) {
+            polParam[m + 1] = stocks[3 * k + m];
+        }
+    }
+
+    /**
+     * Drawing a ray from the tables and returning the index of its direction
+     * and energy cell
+     *
+     * @param rnd
+     * @param ray
+     * @return
+     */
+    private int draw(SplittableRandom rnd, double[] ray) {
+        int c = positionAlias.sample(rnd);
+        ray[0] = origin[0] + (c / (size * size) + rnd.nextDouble()) * step[0];
+        ray[2] = origin[1] + (c / size % size + rnd.nextDouble()) * step[1];
+        ray[1] = origin[2] + (c % size + rnd.nextDouble()) * step[2];
+        int k = directionAlias.sample(rnd), d = k / size, i = d / size, j = d % size;
+        double tx = txEdges[i] + (txEdges[i + 1] - txEdges[i]) * rnd.nextDouble();
+        double ty = tyEdges[j] + (tyEdges[j + 1] - tyEdges[j]) * rnd.nextDouble();
+        double norm = Math.sqrt(tx * tx + ty * ty + 1.0);
+        ray[3] = tx / norm;
+        ray[5] = ty / norm;
+        ray[4] = 1.0 / norm;
+        ray[10] = eLow[d] + (k % size + rnd.nextDouble()) * eStep[d];
+        return k;
+    }
+
+    /**
+     * Drawing a ray from the tables and returning the ratio of the exact ray
+     * density to the tabulated one
+     *
+     * @param rnd
+     * @return
+     */
+    public double ratio(SplittableRandom rnd) {
+        double[] ray = new double[ThompsonSource.NUMBER_OF_COLUMNS], pol = new double[ThompsonSource.NUMBER_OF_POL_PARAM];
+        int k = draw(rnd, ray), d = k / size, i = d / size, j = d % size;
+        int c = (int) ((ray[0] - origin[0]) / step[0]) * size * size
+                + (int) ((ray[2] - origin[1]) / step[1]) * size + (int) ((ray[1] - origin[2]) / step[2]);
+        c = Math.min(Math.max(c, 0), positionMass.length - 1);
+        double p = positionMass[c] / positionTotal / (step[0] * step[1] * step[2])
+                * directionMass[k] / directionTotal
+                / ((txEdges[i + 1] - txEdges[i]) * (tyEdges[j + 1] - tyEdges[j]) * eStep[d]);
+        polarization(ray[3], ray[5], ray[4], ray[10], pol);
+        double f = ss.volumeFlux(ray[0], ray[2], ray[1]) * pol[0];
+        return Double.isNaN(f) ? 0 : f / p;
+    }
+
+    /**
+     * Drawing a position from the ray proposal, which has heavier tails than
+     * the volume flux, and returning its importance weight. The weight is
+     * negative if the position is outside the position grid
+     *
+     * @param rnd
+     * @return
+     */
+    public double positionWeight(SplittableRandom rnd) {
+        double[] ray = new double[ThompsonSource.NUMBER_OF_COLUMNS];
+        double q = proposal.samplePosition(rnd, ray), f = ss.volumeFlux(ray[0], ray[2], ray[1]);
+        double w = Double.isNaN(f) ? 0 : f / q;
+        boolean inside = ray[0] >= origin[0] && ray[0] < origin[0] + size * step[0]
+                && ray[2] >= origin[1] && ray[2] < origin[1] + size * step[1]
+                && ray[1] >= origin[2] && ray[1] < origin[2] + size * step[2];
+        return inside ? w : -w;
+    }
+
+    /**
+     * Setting the approximation error from the density ratios at rays drawn
+     * from the tables and the importance weights of positions drawn from the
+     * proposal. The probability of positions outside the grid is estimated
+     * from the weights. The error is this probability plus the total
+     * variation distance between the tabulated and exact densities normalized
+     * inside the tabulated domain, weighted by the probability inside
+     *
+     * @param ratios
+     * @param weights
+     */
+    public void setError(List<double[]> ratios, List<double[]> weights) {
+        double all = 0, out = 0;
+        for (double[] w : weights) {
+            for (double u : w) {
+                all += Math.abs(u);
+                out += u < 0 ? -u : 0;
+            }
+        }
+        this.outside = all > 0 ? out / all : 0;
+        double sum = 0, dev = 0;
+        int n = 0;
+        for (double[] r : ratios) {
+            for (double u : r) {
+                sum += u;
+                n++;
+            }
+        }
+        double mean = sum / n;
+        for (double[] r : ratios) {
+            for (double u : r) {
+                dev += Math.abs(u / mean - 1);
+            }
+        }
+        this.error = outside + (1 - outside) * (mean > 0 ? dev / n / 2 : 0);
+    }
+
+    /**
+     * The Stocks parameters density for a given direction and energy,
+     * integrated over the electron angular distribution if the spread is taken
+     * into account
+     *
+     * @param nx
+     * @param ny
+     * @param nz
+     * @param e
+     * @param pol
+     */
+    private void polarization(double nx, double ny, double nz, double e, double[] pol) {
+        if (spread) {
+            cubature.integrate((vx, vy, vz, st)
+                    -> ss.directionFrequencyPolarizationNoSpread(nx, ny, nz, vx, vy, vz, e, st),
+                    0, 0, pol);
+        } else {
+            ss.directionFrequencyPolarizationNoSpread(nx, ny, nz, 0.0, 0.0, 1.0, e, pol);
+        }
+    }
+
+    private static double minAbs(double a, double b) {
+        return a > 0 ? a : (b < 0 ? -b : 0);
+    }
+
+    private static double maxAbs(double a, double b) {
+        return Math.max(Math.abs(a), Math.abs(b));
+    }
+
+    /**
+     * Integral of the ray density over the tabulated domain
+     *
+     * @return
+     */
+    public double getTotal() {
+        return positionTotal * directionTotal;
+    }
+
+    /**
+     * Total variation distance between the tabulated and exact ray densities
+     *
+     * @return
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Probability of the positions outside the position grid, which are
+     * never drawn from the tables
+     *
+     * @return
+     */
+    public double getOutside() {
+        return outside;
+    }
+
+    /**
+     * Number of cells along each dimension
+     *
+     * @return
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Whether the tables were built for given parameters
+     *
+     * @param ss
+     * @param xRange
+     * @param yRange
+     * @param minEnergy
+     * @param maxEnergy
+     * @param spread
+     * @param size
+     * @return
+     */
+    public boolean isFor(SourceSnapshot ss, double xRange, double yRange,
+            double minEnergy, double maxEnergy, boolean spread, int size) {
+        return this.ss == ss && this.xRange == xRange && this.yRange == yRange && this.minEnergy == minEnergy
+                && this.maxEnergy == maxEnergy && this.spread == spread && this.size == size;
+    }
+
+    /**
+     * Walker's alias table for drawing indexes with given weights
+     */
+    private static final class Alias {
+
+        private final double[] prob;
+        private final int[] alias;
+
+        Alias(double[] weights, double total) {
+            int n = weights.length, ns = 0, nl = 0;
+            prob = new double[n];
+            alias = new int[n];
+            int[] small = new int[n], large = new int[n];
+            double[] p = new double[n];
+            for (int i = 0; i < n; i++) {
+                //A table without weight is drawn uniformly
+                p[i] = total > 0 ? weights[i] * n / total : 1;
+                if (p[i] < 1) {
+                    small[ns++] = i;
+                } else {
+                    large[nl++] = i;
+                }
+            }
+            while (ns > 0 && nl > 0) {
+                int s = small[--ns], l = large[--nl];
+                prob[s] = p[s];
+                alias[s] = l;
+                p[l] += p[s] - 1;
+                if (p[l] < 1) {
+                    small[ns++] = l;
+                } else {
+                    large[nl++] = l;
+                }
+            }
+            while (nl > 0) {
+                prob[large[--nl]] = 1;
+            }
+            while (ns > 0) {
+                prob[small[--ns]] = 1;
+            }
+        }
+
+        int sample(SplittableRandom rnd) {
+            double u = rnd.nextDouble() * prob.length;
+            int i = (int) u;
+            return u - i < prob[i] ? i : alias[i];
+        }
+    }
+}
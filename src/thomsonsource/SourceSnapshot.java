@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.math3.analysis.integration.gauss.GaussIntegrator;
+import org.apache.commons.math3.analysis.integration.gauss.GaussIntegratorFactory;
+
+/**
+ * An immutable snapshot of the electron bunch and laser pulse parameters with
+ * all loop-invariant constants precomputed. The physics kernels of
+ * ThompsonSource are evaluated against it
+ *
+ * @author Ruslan Feshchenko
+ * @version 1.0
+ */
+public final class SourceSnapshot {
+
+    /**
+     * Constructor capturing the current state of the electron bunch and laser
+     * pulse
+     *
+     * @param eb electron bunch
+     * @param lp laser pulse
+     * @param totalFlux normalized total flux
+     */
+    public SourceSnapshot(ElectronBunch eb, LaserPulse lp, double totalFlux) {
+        this.totalFlux = totalFlux;
+        this.gamma = eb.getGamma();
+        this.gamma2 = gamma * gamma;
+        this.delgamma = eb.getDelgamma();
+        this.photonEnergy = lp.getPhotonEnergy();
+        this.invPhotonEnergy = 1 / photonEnergy;
+        this.mv = Math.sqrt(1.0 - 1.0 / gamma2);
+        this.kFactor = 1 / (4 * Math.pow(gamma * delgamma, 2));
+        this.fluxFactor = totalFlux * 3.0 / 64 / Math.PI / Math.sqrt(Math.PI) / delgamma / gamma / photonEnergy;
+        this.directionFluxFactor = totalFlux * 3.0 / 2 / Math.PI * gamma2;
+        this.ksi1 = lp.getKsi1();
+        this.ksi2 = lp.getKsi2();
+        this.ksi3 = lp.getKsi3();
+        this.xSpread = eb.getXSpread();
+        this.ySpread = eb.getYSpread();
+        this.spread = eb.getSpread();
+        this.invXSpread = 1 / xSpread;
+        this.invYSpread = 1 / ySpread;
+        this.angleFactor = 1 / xSpread / ySpread / Math.PI;
+        this.eLength = eb.getLength();
+        this.lLength = lp.getLength();
+        this.len = Math.sqrt(lLength * lLength + eLength * eLength);
+        this.invLen = 1 / len;
+        this.sn = lp.getDirection().get(1);
+        this.cs = lp.getDirection().get(2);
+        this.x0 = eb.getShift().get(0);
+        this.y0 = eb.getShift().get(1);
+        this.z0 = eb.getShift().get(2);
+        this.delay = lp.getDelay();
+        this.xWidth20 = eb.getxWidth2(0.0);
+        this.xWidth2Slope = eb.getEpsx() / gamma / eb.getBetax();
+        this.yWidth20 = eb.getyWidth2(0.0);
+        this.yWidth2Slope = eb.getEpsy() / gamma / eb.getBetay();
+        this.lWidth20 = lp.getWidth2(0.0);
+        this.lWidth2Slope = lWidth20 / lp.getRlength() / lp.getRlength();
+        this.volumeFactor = 2.0 / Math.pow(Math.PI, 1.5) * Math.sqrt((lWidth20 + xWidth20)
+                * (lWidth20 + yWidth20)) / len;
+        this.spectralParameters = Collections.unmodifiableList(Arrays.asList(gamma, delgamma, photonEnergy,
+                ksi1, ksi2, ksi3, xSpread, ySpread));
+        this.geometricParameters = Collections.unmodifiableList(Arrays.asList(xWidth20, xWidth2Slope,
+                yWidth20, yWidth2Slope, lWidth20, lWidth2Slope, eLength, lLength, sn, cs, x0, y0, z0, delay));
+    }
+
+    /**
+     * A method calculating the flux density in a given direction for a given
+     * X-ray photon energy without taking into account electron transversal
+     * pulse spread
+     *
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param e X-ray energy
+     * @return
+     */
+    public double directionFrequencyFluxNoSpread(double nx, double ny, double nz,
+            double vx, double vy, double vz, double e) {
+        double K, th, er, q;
+        th = (1 - (nx * vx + ny * vy + nz * vz)) * 2;
+        er = e * invPhotonEnergy;
+        q = 1 - er * th / 4;
+        K = Math.pow(Math.sqrt(er / q) - 2 * gamma, 2) * kFactor;
+        return fluxFactor * e * Math.sqrt(er) * (Math.pow(1 - er * th / 2, 2) + 1)
+                / Math.sqrt(q) * Math.exp(-K);
+    }
+
+    /**
+     * A method calculating the Stocks parameters density in a given direction
+     * for a given X-ray photon energy without taking into account electron
+     * transversal pulse spread
+     *
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param e X-ray energy
+     * @param array an array of length ThompsonSource.NUMBER_OF_POL_PARAM for the
+     * results
+     */
+    public void directionFrequencyPolarizationNoSpread(double nx, double ny, double nz,
+            double vx, double vy, double vz, double e, double[] array) {
+        double K, th, m11, m22, m12, mlt, cs2, sn2, er, q;
+        double vn = nx * vx + ny * vy + nz * vz;
+        th = (1 - vn) * 2;
+        er = e * invPhotonEnergy;
+        q = 1 - er * th / 4;
+        mlt = 1 - er * th / 2;
+        K = Math.pow(Math.sqrt(er / q) - 2 * gamma, 2) * kFactor;
+        m11 = 2 * fluxFactor * e * Math.sqrt(er) / Math.sqrt(q) * Math.exp(-K);
+        m12 = m11 * mlt;
+        m22 = m12 * mlt;
+        //Determine the polarization rotation angle
+        double norm = Math.sqrt((1 - vn * vn) * (1 - nx * nx));
+        if (norm != 0) {
+            double c = (vx - nx * vn) / norm;
+            double s = (ny * vz - nz * vy) / norm;
+            cs2 = 2 * c * c - 1;
+            sn2 = 2 * s * c;
+        } else {
+            cs2 = 1;
+            sn2 = 0;
+        }
+        double cs2cs2 = cs2 * cs2, sn2sn2 = sn2 * sn2, cs2sn2 = sn2 * cs2;
+        //Calculating Stocks parameters
+        array[0] = (m11 + m22 - (cs2 * ksi3 + sn2 * ksi1) * (m11 - m22)) / 2;
+        array[3] = (cs2 * (m22 - m11) + ksi3 * (cs2cs2 * (m11 + m22) + 2 * sn2sn2 * m12)
+                + ksi1 * cs2sn2 * (m11 + m22 - 2 * m12)) / 2;
+        array[1] = (sn2 * (m22 - m11) + ksi1 * (sn2sn2 * (m11 + m22) + 2 * cs2cs2 * m12)
+                + ksi3 * cs2sn2 * (m11 + m22 - 2 * m12)) / 2;
+        array[2] = ksi2 * m12;
+        //If intensity is zero tehn set it as unity
+        if (array[0] == 0) {
+            array[0] = 1;
+        }
+    }
+
+    /**
+     * An auxiliary method calculating volume density of the X-ray source
+     *
+     * @param x spatial position, x coordinate
+     * @param y spatial position, y coordinate
+     * @param z spatial position, z coordinate
+     * @return
+     */
+    public double volumeFlux(double x, double y, double z) {
+        double u, z1, y1, K, dz, dx, dy, xw2, yw2, lw2, zl;
+        y1 = -sn * z + cs * y;
+        z1 = cs * z + sn * y;
+        dz = z - z0;
+        dx = x - x0;
+        dy = y - y0;
+        xw2 = xWidth20 + xWidth2Slope * dz * dz;
+        yw2 = yWidth20 + yWidth2Slope * dz * dz;
+        lw2 = lWidth20 + lWidth2Slope * z1 * z1;
+        zl = (z + z1 - z0 - delay) * invLen;
+        K = zl * zl + dx * dx / xw2 + dy * dy / yw2 + (x * x + y1 * y1) / lw2;
+        u = volumeFactor / lw2 / Math.sqrt(xw2 * yw2) * Math.exp(-K);
+        return Double.isNaN(u) ? 0 : u;
+    }
+
+    /**
+     * The volume density of the X-ray source integrated over the transverse
+     * coordinates x and y. Both integrals are Gaussian and are taken in closed
+     * form. The laser width is frozen at the position of the maximum in y
+     *
+     * @param z longitudinal coordinate
+     * @return
+     */
+    public double transverseVolumeFlux(double z) {
+        double dz = z - z0, c1 = z * (1 + cs) - z0 - delay;
+        double xw2 = xWidth20 + xWidth2Slope * dz * dz;
+        double yw2 = yWidth20 + yWidth2Slope * dz * dz;
+        double invLen2 = invLen * invLen, a = 0, b = 0, lw2 = 0;
+        //The laser width at the y maximum found by a fixed-point step
+        double ym = y0;
+        for (int i = 0; i < 2; i++) {
+            double z1 = cs * z + sn * ym;
+            lw2 = lWidth20 + lWidth2Slope * z1 * z1;
+            a = sn * sn * invLen2 + 1 / yw2 + cs * cs / lw2;
+            b = -sn * c1 * invLen2 + y0 / yw2 + cs * sn * z / lw2;
+            ym = b / a;
+        }
+        double c = c1 * c1 * invLen2 + y0 * y0 / yw2 + sn * sn * z * z / lw2;
+        double u = volumeFactor / lw2 / Math.sqrt(xw2 * yw2)
+                * Math.sqrt(Math.PI * xw2 * lw2 / (xw2 + lw2)) * Math.exp(-x0 * x0 / (xw2 + lw2))
+                * Math.sqrt(Math.PI / a) * Math.exp(b * b / a - c);
+        return Double.isNaN(u) ? 0 : u;
+    }
+
+    /**
+     * The volume density of the X-ray source integrated over the transverse
+     * coordinates without freezing the laser width. The integral over x is
+     * taken in closed form and the integral over y by the Gauss-Hermite rule
+     * around the maximum. It is used to estimate the error of
+     * transverseVolumeFlux
+     *
+     * @param z longitudinal coordinate
+     * @return
+     */
+    public double resolvedTransverseVolumeFlux(double z) {
+        double dz = z - z0, c1 = z * (1 + cs) - z0 - delay;
+        double xw2 = xWidth20 + xWidth2Slope * dz * dz;
+        double yw2 = yWidth20 + yWidth2Slope * dz * dz;
+        double invLen2 = invLen * invLen;
+        //The center and width of the y integrand with the laser width at the center
+        double z1 = cs * z + sn * y0;
+        double lw2 = lWidth20 + lWidth2Slope * z1 * z1;
+        double a = sn * sn * invLen2 + 1 / yw2 + cs * cs / lw2;
+        double ym = (-sn * c1 * invLen2 + y0 / yw2 + cs * sn * z / lw2) / a, h = 1 / Math.sqrt(a);
+        double sum = 0;
+        for (int i = 0; i < HERMITE_NODES.length; i++) {
+            double t = HERMITE_NODES[i], y = ym + h * t;
+            z1 = cs * z + sn * y;
+            lw2 = lWidth20 + lWidth2Slope * z1 * z1;
+            double y1 = -sn * z + cs * y, zl = (c1 + sn * y) * invLen, dy = y - y0;
+            double u = Math.sqrt(Math.PI * xw2 * lw2 / (xw2 + lw2)) / lw2
+                    * Math.exp(t * t - x0 * x0 / (xw2 + lw2) - zl * zl - dy * dy / yw2 - y1 * y1 / lw2);
+            sum += HERMITE_WEIGHTS[i] * u;
+        }
+        double u = volumeFactor / Math.sqrt(xw2 * yw2) * h * sum;
+        return Double.isNaN(u) ? 0 : u;
+    }
+
+    /**
+     * The Gaussian approximation of the volume density calculated with the
+     * widths at the waist. The x coordinate is independent, the y and z
+     * coordinates are correlated
+     *
+     * @return an array containing the x center, x variance, y and z centers
+     * and yy, yz and zz elements of the covariance matrix
+     */
+    public double[] overlapGaussian() {
+        double invLen2 = invLen * invLen, g = z0 + delay;
+        double myy = sn * sn * invLen2 + 1 / yWidth20 + cs * cs / lWidth20;
+        double mzz = (1 + cs) * (1 + cs) * invLen2 + sn * sn / lWidth20;
+        double myz = sn * (1 + cs) * invLen2 - cs * sn / lWidth20;
+        double ry = sn * g * invLen2 + y0 / yWidth20, rz = (1 + cs) * g * invLen2;
+        double det = myy * mzz - myz * myz;
+        return new double[]{x0 * lWidth20 / (xWidth20 + lWidth20), xWidth20 * lWidth20 / (xWidth20 + lWidth20) / 2,
+            (mzz * ry - myz * rz) / det, (myy * rz - myz * ry) / det,
+            mzz / det / 2, -myz / det / 2, myy / det / 2};
+    }
+
+    /**
+     * The center and the RMS length of the interaction region along z
+     * calculated with the widths at the waist
+     *
+     * @return an array containing the center and the RMS length
+     */
+    public double[] interactionRegion() {
+        double[] g = overlapGaussian();
+        return new double[]{g[3], Math.sqrt(g[6])};
+    }
+
+    /**
+     * A method giving the flux density in a given direction without the
+     * geometric factor
+     *
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @return
+     */
+    public double directionFlux(double nx, double ny, double nz, double vx, double vy, double vz) {
+        double th, tg, d;
+        th = (1 - (nx * vx + ny * vy + nz * vz)) * 2;
+        tg = th * gamma2;
+        d = 1 + tg;
+        d *= d;
+        return directionFluxFactor * (1 + tg * tg) / (d * d);
+    }
+
+    /**
+     * A method calculating X-ray energy in a given direction
+     *
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @return
+     */
+    public double directionEnergy(double nx, double ny, double nz, double vx, double vy, double vz) {
+        return 2 * photonEnergy / (1 - (nx * vx + ny * vy + nz * vz) * mv);
+    }
+
+    /**
+     * A method calculating the flux density for an array of directions. The
+     * geometric factor is not included
+     *
+     * @param nx directions, x components
+     * @param ny directions, y components
+     * @param nz directions, z components
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param out array for the results
+     * @param length number of directions to evaluate
+     */
+    public void directionFlux(double[] nx, double[] ny, double[] nz,
+            double vx, double vy, double vz, double[] out, int length) {
+        final double g2 = 2 * gamma2, factor = directionFluxFactor;
+        for (int i = 0; i < length; i++) {
+            double tg = (1 - (nx[i] * vx + ny[i] * vy + nz[i] * vz)) * g2;
+            double d = 1 + tg;
+            d *= d;
+            out[i] = factor * (1 + tg * tg) / (d * d);
+        }
+    }
+
+    /**
+     * A method calculating X-ray energy for an array of directions
+     *
+     * @param nx directions, x components
+     * @param ny directions, y components
+     * @param nz directions, z components
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param out array for the results
+     * @param length number of directions to evaluate
+     */
+    public void directionEnergy(double[] nx, double[] ny, double[] nz,
+            double vx, double vy, double vz, double[] out, int length) {
+        final double e2 = 2 * photonEnergy, m = mv;
+        for (int i = 0; i < length; i++) {
+            out[i] = e2 / (1 - (nx[i] * vx + ny[i] * vy + nz[i] * vz) * m);
+        }
+    }
+
+    /**
+     * The angular distribution of electrons in the bunch
+     *
+     * @param thetax
+     * @param thetay
+     * @return
+     */
+    public double angleDistribution(double thetax, double thetay) {
+        double tx = thetax * invXSpread, ty = thetay * invYSpread;
+        return Math.exp(-tx * tx - ty * ty) * angleFactor;
+    }
+
+    /**
+     * Normalized total flux the snapshot was taken with
+     *
+     * @return
+     */
+    public double getTotalFlux() {
+        return totalFlux;
+    }
+
+    /**
+     * Electron gamma
+     *
+     * @return
+     */
+    public double getGamma() {
+        return gamma;
+    }
+
+    /**
+     * Relative electron energy spread
+     *
+     * @return
+     */
+    public double getDelgamma() {
+        return delgamma;
+    }
+
+    /**
+     * Laser photon energy
+     *
+     * @return
+     */
+    public double getPhotonEnergy() {
+        return photonEnergy;
+    }
+
+    /**
+     * Electron velocity spread in the x direction
+     *
+     * @return
+     */
+    public double getXSpread() {
+        return xSpread;
+    }
+
+    /**
+     * Electron velocity spread in the y direction
+     *
+     * @return
+     */
+    public double getYSpread() {
+        return ySpread;
+    }
+
+    /**
+     * Average electron velocity spread
+     *
+     * @return
+     */
+    public double getSpread() {
+        return spread;
+    }
+
+    /**
+     * Electron bunch semi-length
+     *
+     * @return
+     */
+    public double getELength() {
+        return eLength;
+    }
+
+    /**
+     * Laser pulse semi-length
+     *
+     * @return
+     */
+    public double getLLength() {
+        return lLength;
+    }
+
+    /**
+     * Electron bunch width squared in the x direction at the waist
+     *
+     * @return
+     */
+    public double getXWidth20() {
+        return xWidth20;
+    }
+
+    /**
+     * Electron bunch width squared in the y direction at the waist
+     *
+     * @return
+     */
+    public double getYWidth20() {
+        return yWidth20;
+    }
+
+    /**
+     * Laser pulse width squared at the waist
+     *
+     * @return
+     */
+    public double getLWidth20() {
+        return lWidth20;
+    }
+
+    /**
+     * Electron bunch shift relative to the laser pulse
+     *
+     * @param i coordinate index
+     * @return
+     */
+    public double getShift(int i) {
+        return i == 0 ? x0 : (i == 1 ? y0 : z0);
+    }
+
+    /**
+     * Parameters the spectral and angular densities per unit total flux
+     * depend on. Snapshots with equal lists give spectra proportional to
+     * their total fluxes
+     *
+     * @return an unmodifiable list
+     */
+    public List<Double> getSpectralParameters() {
+        return spectralParameters;
+    }
+
+    /**
+     * Parameters the volume density depends on. Snapshots with equal lists
+     * give equal geometric factors
+     *
+     * @return an unmodifiable list
+     */
+    public List<Double> getGeometricParameters() {
+        return geometricParameters;
+    }
+
+    /**
+     * Nodes and weights of the Gauss-Hermite rule for the y integral
+     */
+    private static final double[] HERMITE_NODES, HERMITE_WEIGHTS;
+
+    static {
+        GaussIntegrator rule = new GaussIntegratorFactory().hermite(24);
+        HERMITE_NODES = new double[rule.getNumberOfPoints()];
+        HERMITE_WEIGHTS = new double[rule.getNumberOfPoints()];
+        for (int i = 0; i < HERMITE_NODES.length; i++) {
+            HERMITE_NODES[i] = rule.getPoint(i);
+            HERMITE_WEIGHTS[i] = rule.getWeight(i);
+        }
+    }
+
+    private final double totalFlux;
+    private final double gamma, gamma2, delgamma, mv;
+    private final double photonEnergy, invPhotonEnergy;
+
+    /**
+     * Prefactors of the spectral and angular flux densities
+     */
+    private final double kFactor, fluxFactor, directionFluxFactor;
+
+    /**
+     * Stocks parameters of the laser pulse
+     */
+    private final double ksi1, ksi2, ksi3;
+
+    /**
+     * Electron velocity spreads and the angular distribution normalization
+     */
+    private final double xSpread, ySpread, spread, invXSpread, invYSpread, angleFactor;
+
+    /**
+     * Lengths, laser direction sin/cos, electron bunch shift and laser delay
+     */
+    private final double eLength, lLength, len, invLen, sn, cs, x0, y0, z0, delay;
+
+    /**
+     * Beam widths squared at the waist and their quadratic growth rates
+     */
+    private final double xWidth20, xWidth2Slope, yWidth20, yWidth2Slope, lWidth20, lWidth2Slope;
+
+    /**
+     * Normalization of the volume density
+     */
+    private final double volumeFactor;
+
+    /**
+     * Parameters the spectral and angular densities depend on
+     */
+    private final List<Double> spectralParameters;
+
+    /**
+     * Parameters the volume density depends on
+     */
+    private final List<Double> geometricParameters;
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A bounded thread-safe cache of spread-convolved spectra. The spectra are
+ * stored per unit total flux, so a change of the total flux alone does not
+ * outdate them. Entries are keyed by the parameters the spectra per unit flux
+ * depend on, the integration precision and the quantized direction, electron
+ * velocity and energy. The least recently used entries are evicted first.
+ * Entries for outdated parameters are never hit and are evicted in due course.
+ * Spectra for a zero total flux are not cached
+ *
+ * @author Ruslan Feshchenko
+ * @version 1.0
+ */
+public final class SpectrumCache {
+
+    /**
+     * Kinds of entries
+     */
+    private static final int FLUX = 0, POLARIZATION = 1;
+
+    /**
+     * Default maximal number of entries
+     */
+    public static final int DEFAULT_SIZE = 200000;
+
+    /**
+     * Number of low mantissa bits ignored in keys
+     */
+    private static final int QUANTUM_BITS = 8;
+
+    private static SpectrumCache shared = null;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    private volatile int maxSize;
+    private final Map<Key, double[]> map;
+
+    /**
+     * A spectrum to be calculated on a cache miss
+     */
+    public interface Spectrum {
+
+        /**
+         * Calculating the spectrum value
+         *
+         * @return
+         * @throws InterruptedException
+         */
+        double[] value() throws InterruptedException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxSize maximal number of entries
+     */
+    public SpectrumCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<Key, double[]>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+                return size() > SpectrumCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returning the cache shared by all sources
+     *
+     * @return
+     */
+    public static synchronized SpectrumCache getShared() {
+        if (shared == null) {
+            shared = new SpectrumCache(DEFAULT_SIZE);
+        }
+        return shared;
+    }
+
+    /**
+     * Returning a cached flux density or calculating and caching it
+     *
+     * @param ss parameters snapshot
+     * @param precision relative precision of the spread integrals
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param e X-ray energy
+     * @param f the flux density
+     * @return
+     */
+    public double getFlux(SourceSnapshot ss, double precision, double nx, double ny, double nz,
+            double vx, double vy, double e, DoubleSupplier f) {
+        double flux = ss.getTotalFlux();
+        if (flux == 0) {
+            return f.getAsDouble();
+        }
+        Key key = new Key(FLUX, ss.getSpectralParameters(), precision, nx, ny, nz, vx, vy, e);
+        double[] value = lookup(key);
+        if (value != null) {
+            return value[0] * flux;
+        }
+        double u = f.getAsDouble();
+        store(key, new double[]{u / flux});
+        return u;
+    }
+
+    /**
+     * Returning a cached polarization tensor density or calculating and
+     * caching it
+     *
+     * @param ss parameters snapshot
+     * @param precision relative precision of the spread integrals
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param e X-ray energy
+     * @param f the polarization tensor density
+     * @return a copy of the cached array scaled to the total flux
+     * @throws InterruptedException
+     */
+    public double[] getPolarization(SourceSnapshot ss, double precision, double nx, double ny, double nz,
+            double vx, double vy, double e, Spectrum f) throws InterruptedException {
+        double flux = ss.getTotalFlux();
+        if (flux == 0) {
+            return f.value();
+        }
+        Key key = new Key(POLARIZATION, ss.getSpectralParameters(), precision, nx, ny, nz, vx, vy, e);
+        double[] value = lookup(key);
+        if (value != null) {
+            return scale(value, flux);
+        }
+        value = f.value();
+        store(key, scale(value, 1 / flux));
+        return value;
+    }
+
+    /**
+     * A copy of an array multiplied by a factor
+     *
+     * @param value
+     * @param factor
+     * @return
+     */
+    private static double[] scale(double[] value, double factor) {
+        double[] result = new double[value.length];
+        for (int k = 0; k < value.length; k++) {
+            result[k] = value[k] * factor;
+        }
+        return result;
+    }
+
+    /**
+     * Looking up an entry and counting hits and misses
+     *
+     * @param key
+     * @return the entry or null
+     */
+    private double[] lookup(Key key) {
+        double[] value;
+        synchronized (map) {
+            value = map.get(key);
+        }
+        (value == null ? misses : hits).incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Storing an entry. The values are calculated outside the lock, so
+     * concurrent misses for the same key may store the same value twice
+     *
+     * @param key
+     * @param value
+     */
+    private void store(Key key, double[] value) {
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Removing all entries
+     */
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Number of entries
+     *
+     * @return
+     */
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * Maximal number of entries
+     *
+     * @return
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Setting the maximal number of entries. Extra entries are evicted on
+     * the next insertion
+     *
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Number of cache hits
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of cache misses
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Key of a cache entry
+     */
+    private static final class Key {
+
+        private final int kind;
+        private final List<Double> parameters;
+        private final long precision, nx, ny, nz, vx, vy, e;
+        private final int hash;
+
+        Key(int kind, List<Double> parameters, double precision, double nx, double ny, double nz,
+                double vx, double vy, double e) {
+            this.kind = kind;
+            this.parameters = parameters;
+            this.precision = Double.doubleToLongBits(precision);
+            this.nx = quantize(nx);
+            this.ny = quantize(ny);
+            this.nz = quantize(nz);
+            this.vx = quantize(vx);
+            this.vy = quantize(vy);
+            this.e = quantize(e);
+            long h = kind;
+            for (long u : new long[]{this.precision, this.nx, this.ny, this.nz, this.vx, this.vy, this.e}) {
+                h = 31 * h + u;
+            }
+            this.hash = 31 * (int) (h ^ (h >>> 32)) + parameters.hashCode();
+        }
+
+        /**
+         * Dropping the low mantissa bits of a number
+         *
+         * @param x
+         * @return
+         */
+        private static long quantize(double x) {
+            return (Double.doubleToLongBits(x + 0.0) >> QUANTUM_BITS) << QUANTUM_BITS;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return hash == k.hash && kind == k.kind && precision == k.precision && nx == k.nx && ny == k.ny
+                    && nz == k.nz && vx == k.vx && vy == k.vy && e == k.e
+                    && (parameters == k.parameters || parameters.equals(k.parameters));
+        }
+    }
+}
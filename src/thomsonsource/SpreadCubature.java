@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2015 Ruslan Feshchenko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thomsonsource;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Adaptive cubature over the Gaussian angular distribution of electrons. The
+ * angles, normalized by the spreads, are integrated over a square split into
+ * a uniform grid of initial cells. Each cell is integrated by the tensor
+ * product of the 7-point Gauss-Kronrod rule, and the embedded 3-point Gauss
+ * rule gives the error estimate. The cell with the largest error is bisected
+ * until the total error is below the relative precision. The Kronrod nodes
+ * and weights of the initial cells are precomputed
+ *
+ * @author Ruslan Feshchenko
+ * @version 2.0
+ */
+public final class SpreadCubature {
+
+    /**
+     * Half width of the integration square in units of the spreads
+     */
+    public static final double RANGE = 6;
+
+    /**
+     * Number of initial cells along each angle
+     */
+    public static final int INITIAL_CELL_NUMBER = 8;
+
+    /**
+     * Maximal number of integrand evaluations in one integration
+     */
+    public static final int MAX_EVALUATIONS = 1000000;
+
+    /**
+     * Maximal number of cached cubatures
+     */
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * Nodes and weights of the 7-point Kronrod rule on [-1, 1] and of the
+     * embedded 3-point Gauss rule, which uses the odd Kronrod nodes
+     */
+    private static final double[] NODES = {
+        -0.960491268708020283423507092629080, -0.774596669241483377035853079956480,
+        -0.434243749346802558002071502844628, 0.0,
+        0.434243749346802558002071502844628, 0.774596669241483377035853079956480,
+        0.960491268708020283423507092629080};
+    private static final double[] KRONROD_WEIGHTS = {
+        0.104656226026467265193823857192073, 0.268488089868333440728569280666710,
+        0.401397414775962222905051818618432, 0.450916538658474142345110087045571,
+        0.401397414775962222905051818618432, 0.268488089868333440728569280666710,
+        0.104656226026467265193823857192073};
+    private static final double[] GAUSS_WEIGHTS = {
+        0, 5.0 / 9, 0, 8.0 / 9, 0, 5.0 / 9, 0};
+    private static final int RULE_SIZE = NODES.length;
+
+    private static final Map<List<Double>, SpreadCubature> CACHE
+            = new LinkedHashMap<List<Double>, SpreadCubature>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Double>, SpreadCubature> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * An integrand as a function of the electron velocity
+     */
+    public interface Integrand {
+
+        /**
+         * The value of the function for a given normalized electron velocity
+         *
+         * @param vx
+         * @param vy
+         * @param vz
+         * @return
+         */
+        double value(double vx, double vy, double vz);
+    }
+
+    /**
+     * A vector-valued integrand as a function of the electron velocity
+     */
+    public interface VectorIntegrand {
+
+        /**
+         * Writing the values of the function for a given normalized electron
+         * velocity into an array
+         *
+         * @param vx
+         * @param vy
+         * @param vz
+         * @param values
+         */
+        void value(double vx, double vy, double vz, double[] values);
+    }
+
+    private final double xSpread, ySpread, precision;
+
+    /**
+     * Angular offsets and weights of the Kronrod nodes of the initial cells
+     * along each angle
+     */
+    private final double[] dx, dy, weights;
+
+    /**
+     * Constructor
+     *
+     * @param xSpread electron angular spread in x direction
+     * @param ySpread electron angular spread in y direction
+     * @param precision relative precision
+     */
+    private SpreadCubature(double xSpread, double ySpread, double precision) {
+        this.xSpread = xSpread;
+        this.ySpread = ySpread;
+        this.precision = precision;
+        int size = INITIAL_CELL_NUMBER * RULE_SIZE;
+        this.dx = new double[size];
+        this.dy = new double[size];
+        this.weights = new double[size];
+        double h = RANGE / INITIAL_CELL_NUMBER;
+        for (int i = 0; i < INITIAL_CELL_NUMBER; i++) {
+            double c = -RANGE + (2 * i + 1) * h;
+            for (int k = 0; k < RULE_SIZE; k++) {
+                double u = c + h * NODES[k];
+                dx[i * RULE_SIZE + k] = xSpread * u;
+                dy[i * RULE_SIZE + k] = ySpread * u;
+                weights[i * RULE_SIZE + k] = h * KRONROD_WEIGHTS[k] * Math.exp(-u * u);
+            }
+        }
+    }
+
+    /**
+     * Returning a cached cubature for given spreads and relative precision
+     *
+     * @param xSpread electron angular spread in x direction
+     * @param ySpread electron angular spread in y direction
+     * @param precision relative precision
+     * @return
+     */
+    public static SpreadCubature getCubature(double xSpread, double ySpread, double precision) {
+        List<Double> key = Arrays.asList(xSpread, ySpread, precision);
+        synchronized (CACHE) {
+            SpreadCubature cub = CACHE.get(key);
+            if (cub == null) {
+                cub = new SpreadCubature(xSpread, ySpread, precision);
+                CACHE.put(key, cub);
+            }
+            return cub;
+        }
+    }
+
+    /**
+     * Relative precision
+     *
+     * @return
+     */
+    public double getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Number of initial cells
+     *
+     * @return
+     */
+    public int size() {
+        return INITIAL_CELL_NUMBER * INITIAL_CELL_NUMBER;
+    }
+
+    /**
+     * Integrating a function over the angular distribution of electrons
+     * centered at a given velocity. The solid angle element is taken into
+     * account
+     *
+     * @param f
+     * @param v0x mean velocity, x component
+     * @param v0y mean velocity, y component
+     * @return
+     */
+    public double integrate(Integrand f, double v0x, double v0y) {
+        double[] result = new double[1];
+        integrate((vx, vy, vz, values) -> values[0] = f.value(vx, vy, vz), v0x, v0y, result);
+        return result[0];
+    }
+
+    /**
+     * Integrating a vector-valued function over the angular distribution of
+     * electrons centered at a given velocity. The function is evaluated once
+     * per node and all components are refined together. The error is
+     * controlled relative to the first component
+     *
+     * @param f
+     * @param v0x mean velocity, x component
+     * @param v0y mean velocity, y component
+     * @param result array for the integrals
+     */
+    public void integrate(VectorIntegrand f, double v0x, double v0y, double[] result) {
+        Partition p = start(f, result.length, v0x, v0y, 0, size());
+        p.refine(0);
+        System.arraycopy(p.getResult(), 0, result, 0, result.length);
+    }
+
+    /**
+     * Evaluating the initial cells from a given range so that an integral
+     * can be split between threads. The partition is then refined by
+     * Partition.refine
+     *
+     * @param f
+     * @param dimension number of the function components
+     * @param v0x mean velocity, x component
+     * @param v0y mean velocity, y component
+     * @param from the first cell
+     * @param to the cell after the last one
+     * @return
+     */
+    public Partition start(VectorIntegrand f, int dimension, double v0x, double v0y, int from, int to) {
+        //The evaluation limit is shared between partitions
+        Partition p = new Partition(f, dimension, v0x, v0y,
+                (int) ((long) MAX_EVALUATIONS * (to - from) / size()));
+        double h = RANGE / INITIAL_CELL_NUMBER;
+        for (int m = from; m < to; m++) {
+            int i = m / INITIAL_CELL_NUMBER, j = m % INITIAL_CELL_NUMBER;
+            p.add(p.evaluate(-RANGE + (2 * i + 1) * h, -RANGE + (2 * j + 1) * h, h, h,
+                    i * RULE_SIZE, j * RULE_SIZE));
+        }
+        return p;
+    }
+
+    /**
+     * A cell of the adaptive cubature
+     */
+    private static final class Cell {
+
+        private final double cx, cy, hx, hy;
+        private final double[] value;
+        private final double error;
+        private final boolean splitX;
+
+        private Cell(double cx, double cy, double hx, double hy, double[] value, double error, boolean splitX) {
+            this.cx = cx;
+            this.cy = cy;
+            this.hx = hx;
+            this.hy = hy;
+            this.value = value;
+            this.error = error;
+            this.splitX = splitX;
+        }
+    }
+
+    /**
+     * A set of cells refined together
+     */
+    public final class Partition {
+
+        private final VectorIntegrand f;
+        private final int dimension;
+        private final double v0x, v0y;
+        private final double[] values, result, kg, gk, gg;
+        private final PriorityQueue<Cell> cells
+                = new PriorityQueue<>((a, b) -> Double.compare(b.error, a.error));
+        private final int maxEvaluations;
+        private int evaluations = 0;
+        private double error = 0, total = 0;
+
+        private Partition(VectorIntegrand f, int dimension, double v0x, double v0y, int maxEvaluations) {
+            this.f = f;
+            this.maxEvaluations = maxEvaluations;
+            this.dimension = dimension;
+            this.v0x = v0x;
+            this.v0y = v0y;
+            this.values = new double[dimension];
+            this.result = new double[dimension];
+            this.kg = new double[dimension];
+            this.gk = new double[dimension];
+            this.gg = new double[dimension];
+        }
+
+        /**
+         * Refining the cells with the largest errors until the total error
+         * is below the relative precision of the first component or the
+         * absolute tolerance, whichever is larger
+         *
+         * @param tolerance absolute tolerance
+         */
+        public void refine(double tolerance) {
+            while (!cells.isEmpty() && evaluations < maxEvaluations) {
+                if (error <= Math.max(tolerance, precision * Math.abs(total))) {
+                    //Recalculating the sums to exclude the accumulated round-off
+                    error = getError();
+                    total = getResult()[0];
+                    if (error <= Math.max(tolerance, precision * Math.abs(total))) {
+                        break;
+                    }
+                }
+                Cell c = cells.poll();
+                error -= c.error;
+                total -= c.value[0];
+                double hx = c.splitX ? c.hx / 2 : c.hx, hy = c.splitX ? c.hy : c.hy / 2;
+                double sx = c.splitX ? hx : 0, sy = c.splitX ? 0 : hy;
+                add(evaluate(c.cx - sx, c.cy - sy, hx, hy, -1, -1));
+                add(evaluate(c.cx + sx, c.cy + sy, hx, hy, -1, -1));
+            }
+        }
+
+        /**
+         * The integrals over the partition
+         *
+         * @return
+         */
+        public double[] getResult() {
+            Arrays.fill(result, 0);
+            for (Cell c : cells) {
+                for (int k = 0; k < dimension; k++) {
+                    result[k] += c.value[k];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * The error estimate of the integrals over the partition
+         *
+         * @return
+         */
+        public double getError() {
+            double error = 0;
+            for (Cell c : cells) {
+                error += c.error;
+            }
+            return error;
+        }
+
+        private void add(Cell c) {
+            cells.add(c);
+            error += c.error;
+            total += c.value[0];
+        }
+
+        /**
+         * Evaluating the Kronrod and Gauss rules over a cell. Initial cells
+         * use the precomputed nodes starting from the given offsets
+         */
+        private Cell evaluate(double cx, double cy, double hx, double hy, int ix, int iy) {
+            double[] kk = new double[dimension];
+            Arrays.fill(kg, 0);
+            Arrays.fill(gk, 0);
+            Arrays.fill(gg, 0);
+            for (int i = 0; i < RULE_SIZE; i++) {
+                double ax, wx;
+                if (ix < 0) {
+                    double u = cx + hx * NODES[i];
+                    ax = xSpread * u;
+                    wx = hx * KRONROD_WEIGHTS[i] * Math.exp(-u * u);
+                } else {
+                    ax = dx[ix + i];
+                    wx = weights[ix + i];
+                }
+                double gx = wx * GAUSS_WEIGHTS[i] / KRONROD_WEIGHTS[i];
+                for (int j = 0; j < RULE_SIZE; j++) {
+                    double ay, wy;
+                    if (iy < 0) {
+                        double u = cy + hy * NODES[j];
+                        ay = ySpread * u;
+                        wy = hy * KRONROD_WEIGHTS[j] * Math.exp(-u * u);
+                    } else {
+                        ay = dy[iy + j];
+                        wy = weights[iy + j];
+                    }
+                    double gy = wy * GAUSS_WEIGHTS[j] / KRONROD_WEIGHTS[j];
+                    double vx = v0x + ax, vy = v0y + ay;
+                    double vz = Math.sqrt(1 - vx * vx - vy * vy);
+                    f.value(vx, vy, vz, values);
+                    for (int k = 0; k < dimension; k++) {
+                        double u = values[k] / vz / Math.PI;
+                        if (Double.isNaN(u)) {
+                            continue;
+                        }
+                        kk[k] += wx * wy * u;
+                        kg[k] += wx * gy * u;
+                        gk[k] += gx * wy * u;
+                        gg[k] += gx * gy * u;
+                    }
+                }
+            }
+            evaluations += RULE_SIZE * RULE_SIZE;
+            //The cell is split along the angle with the larger error
+            double err = 0, ex = 0, ey = 0;
+            for (int k = 0; k < dimension; k++) {
+                err = Math.max(err, Math.abs(kk[k] - gg[k]));
+                ex = Math.max(ex, Math.abs(kk[k] - gk[k]));
+                ey = Math.max(ey, Math.abs(kk[k] - kg[k]));
+            }
+            return new Cell(cx, cy, hx, hy, kk, err, ex >= ey);
+        }
+    }
+}
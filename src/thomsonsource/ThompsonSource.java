@@ -16,23 +16,33 @@
  */
 package thomsonsource;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+import org.apache.commons.math3.random.HaltonSequenceGenerator;
 import org.apache.commons.math3.analysis.UnivariateFunction;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
 import org.la4j.Vector;
 import org.apache.commons.math3.analysis.integration.*;
-import org.apache.commons.math3.complex.Complex;
-import org.la4j.Matrix;
-import org.la4j.matrix.dense.Basic1DMatrix;
 import org.la4j.Vectors;
 import org.la4j.vector.dense.BasicVector;
 
 /**
- * The main class containing all physics of LEXG
+ * The main class containing all physics of LEXG. The parameters of the
+ * electron bunch and laser pulse are captured in a SourceSnapshot each time
+ * calculateTotalFlux or calculateGeometricFactor is called
  *
  * @author Ruslan Feshchenko
  * @version 2.6
@@ -50,14 +60,12 @@ public class ThompsonSource implements Cloneable {
         this.lp = l;
         this.eb = b;
         this.counter = new AtomicInteger();
+        this.rays = new AtomicInteger();
+        this.fluxSamples = new AtomicInteger();
         this.partialFlux = new DoubleAdder();
         calculateTotalFlux();
         calculateGeometricFactor();
     }
-    /**
-     * Multiple for the range
-     */
-    private static final double INT_RANGE = 3;
     /**
      * The number of columns in Shadow files
      */
@@ -69,10 +77,16 @@ public class ThompsonSource implements Cloneable {
     public static final int NUMBER_OF_POL_PARAM = 4;
 
     /**
-     * A numerical shift to improve convergence of polarization angular
-     * integrals
+     * The number of chunks parallel calculations are split into. It does not
+     * depend on the number of threads so that the results are reproducible
+     */
+    public static final int PARALLEL_CHUNKS = 64;
+
+    /**
+     * The minimal number of initial cubature cells per task in the spread
+     * polarization calculations
      */
-    public static final double SHIFT = 1e21;
+    private static final int MIN_CELLS_PER_TASK = 4;
 
     /**
      * Angle range for rays exported for Shadow in the X-direction
@@ -106,8 +120,8 @@ public class ThompsonSource implements Cloneable {
     public static final int MAXIMAL_NUMBER_OF_EVALUATIONS = 1000000;
 
     /**
-     * A shift factor to improve numerical integral convergence in polarization
-     * calculations
+     * A shift factor formerly used to improve numerical integral convergence
+     * in polarization calculations, kept for the deprecated accessors
      */
     private double shiftfactor = 1;
     /**
@@ -125,6 +139,103 @@ public class ThompsonSource implements Cloneable {
      */
     private double geometricFactor = 1;
 
+    /**
+     * Statistical standard error of the geometric factor
+     */
+    private double geometricFactorError = 0;
+
+    /**
+     * Method of the geometric factor calculation
+     */
+    private GeometricFactorMethod gfMethod = GeometricFactorMethod.MONTE_CARLO;
+
+    /**
+     * Parameters and settings of the last completed geometric factor
+     * calculation or null
+     */
+    private List<Object> geometricFactorKey = null;
+
+    /**
+     * Target relative error of the quasi-Monte Carlo geometric factor. If zero
+     * all npGeometricFactor points are used
+     */
+    private double gfTargetError = 1e-3;
+
+    /**
+     * Number of independent randomizations in the quasi-Monte Carlo
+     * calculation of the geometric factor
+     */
+    public static final int QMC_RANDOMIZATIONS = 8;
+
+    /**
+     * Initial number of quasi-Monte Carlo points per randomization
+     */
+    private static final int QMC_INITIAL_BLOCK = 256;
+
+    /**
+     * Half-range of the semi-analytic geometric factor integral in RMS
+     * lengths of the interaction region
+     */
+    private static final double SA_RANGE = 10;
+
+    /**
+     * Inflation of the RMS widths of the importance sampling proposal relative
+     * to the Gaussian overlap
+     */
+    private static final double IS_INFLATION = 1.5;
+
+    /**
+     * Ratio of the variances of uniform and importance sampling in the last
+     * importance sampling calculation of the geometric factor
+     */
+    private double gfVarianceReduction = 1;
+
+    /**
+     * Number of pilot samples used to estimate the rejection envelope of the
+     * ray generation
+     */
+    private static final int RAY_PILOT_SIZE = 20000;
+
+    /**
+     * Safety margin of the rejection envelope over the pilot maximum
+     */
+    private static final double RAY_ENVELOPE_MARGIN = 1.2;
+
+    /**
+     * Methods of the geometric factor calculation
+     */
+    public enum GeometricFactorMethod {
+
+        /**
+         * Pseudo-random sampling
+         */
+        MONTE_CARLO("Monte Carlo"),
+        /**
+         * Randomly shifted scrambled Halton sequences with adaptive stopping
+         */
+        QUASI_MONTE_CARLO("Quasi-Monte Carlo"),
+        /**
+         * Closed-form transverse integrals and 1D quadrature along z
+         */
+        SEMI_ANALYTIC("Semi-analytic"),
+        /**
+         * Sampling from a Gaussian matched to the overlap of the electron bunch
+         * and laser pulse envelopes
+         */
+        IMPORTANCE("Importance sampling");
+
+        private final String name;
+
+        GeometricFactorMethod(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
     /**
      * Flag - whether or not the electron beam transversal velocity spread is
      * taken into account
@@ -146,17 +257,82 @@ public class ThompsonSource implements Cloneable {
      */
     private AtomicInteger counter;
 
+    /**
+     * Counter of generated rays
+     */
+    private AtomicInteger rays;
+
+    /**
+     * Number of samples in the partial flux estimate
+     */
+    private AtomicInteger fluxSamples;
+
+    /**
+     * Proposal distribution for the ray generation and its envelope
+     */
+    private RayProposal rayProposal = null;
+
+    /**
+     * Number of cells along each dimension of the ray tables. If zero rays
+     * are generated by rejection sampling
+     */
+    private int rayTableResolution = 0;
+
+    /**
+     * Tabulated ray density
+     */
+    private volatile RayTable rayTable = null;
+
     private LaserPulse lp;
     private ElectronBunch eb;
 
     private double[] ksi = null;
 
+    /**
+     * Precomputed parameters the kernels are evaluated against
+     */
+    private SourceSnapshot snapshot;
+
+    /**
+     * Seed of the random streams. If null the streams are not reproducible
+     */
+    private Long seed = null;
+
+    /**
+     * Cache of the spread-convolved spectra. If null the spectra are not
+     * cached
+     */
+    private SpectrumCache spectrumCache = SpectrumCache.getShared();
+
+    /**
+     * Work-stealing pool for parallel calculations. If null the shared pool is
+     * used
+     */
+    private ForkJoinPool executor = null;
+
+    /**
+     * Work-stealing pool shared by all sources
+     */
+    private static ForkJoinPool sharedExecutor = null;
+
+    /**
+     * Low priority work-stealing pool for background calculations
+     */
+    private static ForkJoinPool backgroundExecutor = null;
+
+    /**
+     * Number of workers in each of the shared pools
+     */
+    private static int sharedParallelism = Runtime.getRuntime().availableProcessors();
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         Object tm = super.clone();
         ((ThompsonSource) tm).eb = (ElectronBunch) this.eb.clone();
         ((ThompsonSource) tm).lp = (LaserPulse) this.lp.clone();
         ((ThompsonSource) tm).counter = new AtomicInteger();
+        ((ThompsonSource) tm).rays = new AtomicInteger();
+        ((ThompsonSource) tm).fluxSamples = new AtomicInteger();
         ((ThompsonSource) tm).partialFlux = new DoubleAdder();
         if (ksi != null) {
             ((ThompsonSource) tm).ksi = (double[]) ksi.clone();
@@ -194,6 +370,17 @@ public class ThompsonSource implements Cloneable {
         this.totalFlux = SIGMA_T * eb.getNumber() * lp.getPhotonNumber()
                 * lp.getFq() / Math.PI / Math.sqrt((lp.getWidth2(0.0) + eb.getxWidth2(0.0))
                 * (lp.getWidth2(0.0) + eb.getyWidth2(0.0)));
+        this.snapshot = new SourceSnapshot(eb, lp, totalFlux);
+    }
+
+    /**
+     * Returns the snapshot of parameters the kernels are currently evaluated
+     * against
+     *
+     * @return
+     */
+    public SourceSnapshot getSnapshot() {
+        return snapshot;
     }
 
     /**
@@ -217,44 +404,339 @@ public class ThompsonSource implements Cloneable {
      *
      */
     public final void calculateGeometricFactor() {
-        ExecutorService execs = Executors.newFixedThreadPool(threadNumber);
-        // We need to synchronize threads
-        CountDownLatch lt = new CountDownLatch(threadNumber);
-        // Atomic adder
-        DoubleAdder sum = new DoubleAdder();
-        double wdx, wdy, len;
+        final SourceSnapshot ss = new SourceSnapshot(eb, lp, totalFlux);
+        this.snapshot = ss;
+        this.geometricFactorKey = null;
+        double wdx, wdy, len, x0, y0, z0;
         int mult = 2;
-        wdx = mult * Math.max(eb.getxWidth(0.0) + Math.abs(eb.getShift().get(0)) / 2, lp.getWidth(0.0) + Math.abs(eb.getShift().get(0)) / 2);
-        wdy = mult * Math.max(eb.getyWidth(0.0) + Math.abs(eb.getShift().get(1)) / 2, lp.getWidth(0.0) + Math.abs(eb.getShift().get(1)) / 2);
-        len = mult * Math.max(eb.getLength() + Math.abs(eb.getShift().get(2)) / 2, lp.getLength() + Math.abs(eb.getShift().get(2)) / 2);
-        final int itNumber = Math.round(getNpGeometricFactor() / threadNumber);
+        x0 = ss.getShift(0) / 2;
+        y0 = ss.getShift(1) / 2;
+        z0 = ss.getShift(2) / 2;
+        wdx = mult * Math.max(Math.sqrt(ss.getXWidth20()) + Math.abs(x0), Math.sqrt(ss.getLWidth20()) + Math.abs(x0));
+        wdy = mult * Math.max(Math.sqrt(ss.getYWidth20()) + Math.abs(y0), Math.sqrt(ss.getLWidth20()) + Math.abs(y0));
+        len = mult * Math.max(ss.getELength() + Math.abs(z0), ss.getLLength() + Math.abs(z0));
+        final double[] box = new double[]{x0, y0, z0, wdx, wdy, len};
+        try {
+            switch (gfMethod) {
+                case SEMI_ANALYTIC:
+                    calculateGeometricFactorSemiAnalytic(ss);
+                    break;
+                case IMPORTANCE:
+                    calculateGeometricFactorImportance(ss, box);
+                    break;
+                case QUASI_MONTE_CARLO:
+                    calculateGeometricFactorQuasiMonteCarlo(ss, box);
+                    break;
+                default:
+                    calculateGeometricFactorMonteCarlo(ss, box);
+            }
+            this.geometricFactorKey = geometricFactorKey(ss);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Updating the snapshot and recalculating the geometric factor only if
+     * the parameters or settings it depends on have changed since the last
+     * calculation
+     *
+     * @return true if the geometric factor has been recalculated
+     */
+    public final boolean updateGeometricFactor() {
+        SourceSnapshot ss = new SourceSnapshot(eb, lp, totalFlux);
+        if (geometricFactorKey(ss).equals(geometricFactorKey)) {
+            this.snapshot = ss;
+            return false;
+        }
+        calculateGeometricFactor();
+        return true;
+    }
+
+    /**
+     * Parameters and settings the geometric factor depends on
+     *
+     * @param ss
+     * @return
+     */
+    private List<Object> geometricFactorKey(SourceSnapshot ss) {
+        return Arrays.asList(ss.getGeometricParameters(), gfMethod, getNpGeometricFactor(),
+                getPrecision(), gfTargetError, seed);
+    }
+
+    /**
+     * Monte Carlo calculation of the geometric factor with pseudo-random points
+     * uniformly distributed in a box
+     *
+     * @param ss
+     * @param box the center and the half-sizes of the box
+     * @throws InterruptedException
+     */
+    private void calculateGeometricFactorMonteCarlo(final SourceSnapshot ss, final double[] box) throws InterruptedException {
+        final int np = getNpGeometricFactor();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final SplittableRandom random = newRandom();
         /*
-         Splitting the job into a number of threads
+         Splitting the job into a fixed number of chunks with their own random
+         streams
          */
-        for (int m = 0; m < threadNumber; m++) {
-            execs.execute(() -> {
-                double psum = 0;
-                Vector iter = new BasicVector(new double[]{0.0, 0.0, 0.0});
+        List<Callable<double[]>> tasks = new ArrayList<>();
+        for (int m = 0; m < PARALLEL_CHUNKS; m++) {
+            final SplittableRandom rnd = random.split();
+            final int itNumber = (int) ((long) np * (m + 1) / PARALLEL_CHUNKS - (long) np * m / PARALLEL_CHUNKS);
+            tasks.add(() -> {
+                double psum = 0, psum2 = 0;
                 for (int i = 0; i < itNumber; i++) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        return;
+                    if (cancelled.get()) {
+                        break;
                     }
-                    iter.set(0, eb.getShift().get(0) / 2 + wdx * (2 * Math.random() - 1.0));
-                    iter.set(1, eb.getShift().get(1) / 2 + wdy * (2 * Math.random() - 1.0));
-                    iter.set(2, eb.getShift().get(2) / 2 + len * (2 * Math.random() - 1.0));
-                    psum += volumeFlux(iter);
+                    double f = ss.volumeFlux(box[0] + box[3] * (2 * rnd.nextDouble() - 1.0),
+                            box[1] + box[4] * (2 * rnd.nextDouble() - 1.0),
+                            box[2] + box[5] * (2 * rnd.nextDouble() - 1.0));
+                    psum += f;
+                    psum2 += f * f;
                 }
-                sum.add(psum);
-                lt.countDown();
+                return new double[]{psum, psum2};
             });
         }
+        double sum = 0, sum2 = 0;
+        for (double[] psum : invokeTasks(tasks, cancelled)) {
+            sum += psum[0];
+            sum2 += psum[1];
+        }
+        double volume = 8 * box[3] * box[4] * box[5];
+        double mean = sum / np;
+        this.geometricFactor = volume * mean;
+        this.geometricFactorError = volume * Math.sqrt(Math.max(sum2 / np - mean * mean, 0) / np);
+    }
+
+    /**
+     * Randomized quasi-Monte Carlo calculation of the geometric factor. Several
+     * independent random shifts of a scrambled Halton sequence in the box are
+     * used and their spread gives the error estimate. The number of points is
+     * doubled until the target relative error is reached or npGeometricFactor
+     * points are used
+     *
+     * @param ss
+     * @param box the center and the half-sizes of the box
+     * @throws InterruptedException
+     */
+    private void calculateGeometricFactorQuasiMonteCarlo(final SourceSnapshot ss, final double[] box) throws InterruptedException {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final double[][] shifts = new double[QMC_RANDOMIZATIONS][3];
+        final SplittableRandom random = newRandom();
+        for (double[] sh : shifts) {
+            for (int k = 0; k < 3; k++) {
+                sh[k] = random.nextDouble();
+            }
+        }
+        double[] sums = new double[QMC_RANDOMIZATIONS];
+        double volume = 8 * box[3] * box[4] * box[5];
+        int maxPoints = Math.max(QMC_INITIAL_BLOCK, getNpGeometricFactor() / QMC_RANDOMIZATIONS);
+        int np = 0, block = Math.min(QMC_INITIAL_BLOCK, maxPoints);
+        while (block > 0) {
+            final int from = np, to = np + block;
+            List<Callable<Double>> tasks = new ArrayList<>();
+            for (double[] sh : shifts) {
+                tasks.add(() -> {
+                    HaltonSequenceGenerator gen = new HaltonSequenceGenerator(3);
+                    double psum = 0;
+                    double[] u = gen.skipTo(from);
+                    for (int i = from; i < to; i++) {
+                        if (cancelled.get()) {
+                            break;
+                        }
+                        if (i > from) {
+                            u = gen.nextVector();
+                        }
+                        psum += ss.volumeFlux(box[0] + box[3] * (2 * shiftedPoint(u[0], sh[0]) - 1.0),
+                                box[1] + box[4] * (2 * shiftedPoint(u[1], sh[1]) - 1.0),
+                                box[2] + box[5] * (2 * shiftedPoint(u[2], sh[2]) - 1.0));
+                    }
+                    return psum;
+                });
+            }
+            List<Double> results = invokeTasks(tasks, cancelled);
+            for (int r = 0; r < QMC_RANDOMIZATIONS; r++) {
+                sums[r] += results.get(r);
+            }
+            np = to;
+            //Estimates and their spread over randomizations
+            double mean = 0, var = 0;
+            for (double sm : sums) {
+                mean += sm / np;
+            }
+            mean /= QMC_RANDOMIZATIONS;
+            for (double sm : sums) {
+                var += (sm / np - mean) * (sm / np - mean);
+            }
+            var /= QMC_RANDOMIZATIONS - 1;
+            this.geometricFactor = volume * mean;
+            this.geometricFactorError = volume * Math.sqrt(var / QMC_RANDOMIZATIONS);
+            if (gfTargetError > 0 && geometricFactorError <= gfTargetError * geometricFactor) {
+                break;
+            }
+            block = Math.min(np, maxPoints - np);
+        }
+    }
+
+    /**
+     * Semi-analytic calculation of the geometric factor. The volume density is
+     * integrated over x and y in closed form and the remaining integral along
+     * z is calculated by the Romberg method. The error estimate is the
+     * difference from the integral with the laser width resolved in y plus
+     * the nominal error given by the precision
+     *
+     * @param ss
+     */
+    private void calculateGeometricFactorSemiAnalytic(final SourceSnapshot ss) {
+        this.geometricFactor = volumeFluxIntegral(ss, ss::transverseVolumeFlux);
+        this.geometricFactorError = Math.abs(volumeFluxIntegral(ss, ss::resolvedTransverseVolumeFlux) - geometricFactor)
+                + getPrecision() * geometricFactor;
+    }
+
+    /**
+     * The integral of the volume flux over the whole space with transverse
+     * integrals given by a function of z and the Romberg method along z
+     *
+     * @param ss
+     * @param transverseFlux the volume flux integrated over x and y
+     * @return the integral or zero if the integration does not converge
+     */
+    private double volumeFluxIntegral(final SourceSnapshot ss, UnivariateFunction transverseFlux) {
+        double[] region = ss.interactionRegion();
+        RombergIntegrator integrator = new RombergIntegrator(getPrecision(), RombergIntegrator.DEFAULT_ABSOLUTE_ACCURACY,
+                RombergIntegrator.DEFAULT_MIN_ITERATIONS_COUNT, RombergIntegrator.ROMBERG_MAX_ITERATIONS_COUNT);
         try {
-            lt.await();
+            return integrator.integrate(MAXIMAL_NUMBER_OF_EVALUATIONS, transverseFlux,
+                    region[0] - SA_RANGE * region[1], region[0] + SA_RANGE * region[1]);
+        } catch (TooManyEvaluationsException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Importance sampling calculation of the geometric factor. The points are
+     * drawn from a Gaussian matched to the overlap of the envelopes with
+     * inflated widths and weighted by the inverse proposal density. The
+     * achieved variance reduction relative to uniform sampling in the box is
+     * estimated from the same samples
+     *
+     * @param ss
+     * @param box the center and the half-sizes of the box used by the uniform
+     * sampling
+     * @throws InterruptedException
+     */
+    private void calculateGeometricFactorImportance(final SourceSnapshot ss, final double[] box) throws InterruptedException {
+        final double[] g = ss.overlapGaussian();
+        final double k2 = IS_INFLATION * IS_INFLATION;
+        //Cholesky decomposition of the y-z covariance matrix
+        final double sx = Math.sqrt(k2 * g[1]);
+        final double l11 = Math.sqrt(k2 * g[4]), l21 = k2 * g[5] / l11;
+        final double l22 = Math.sqrt(k2 * g[6] - l21 * l21);
+        final double qnorm = 1 / Math.pow(2 * Math.PI, 1.5) / sx / l11 / l22;
+        final int np = getNpGeometricFactor();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final SplittableRandom random = newRandom();
+        List<Callable<double[]>> tasks = new ArrayList<>();
+        for (int m = 0; m < PARALLEL_CHUNKS; m++) {
+            final SplittableRandom rnd = random.split();
+            final int itNumber = (int) ((long) np * (m + 1) / PARALLEL_CHUNKS - (long) np * m / PARALLEL_CHUNKS);
+            tasks.add(() -> {
+                double[] psum = new double[3];
+                for (int i = 0; i < itNumber; i++) {
+                    if (cancelled.get()) {
+                        break;
+                    }
+                    double u1 = nextGaussian(rnd), u2 = nextGaussian(rnd), u3 = nextGaussian(rnd);
+                    double f = ss.volumeFlux(g[0] + sx * u1, g[2] + l11 * u2, g[3] + l21 * u2 + l22 * u3);
+                    double q = qnorm * Math.exp(-(u1 * u1 + u2 * u2 + u3 * u3) / 2);
+                    psum[0] += f / q;
+                    psum[1] += f * f / q / q;
+                    psum[2] += f * f / q;
+                }
+                return psum;
+            });
+        }
+        double[] sum = new double[3];
+        for (double[] psum : invokeTasks(tasks, cancelled)) {
+            for (int k = 0; k < 3; k++) {
+                sum[k] += psum[k];
+            }
+        }
+        double mean = sum[0] / np;
+        double variance = Math.max(sum[1] / np - mean * mean, 0);
+        this.geometricFactor = mean;
+        this.geometricFactorError = Math.sqrt(variance / np);
+        this.gfVarianceReduction = (8 * box[3] * box[4] * box[5] * sum[2] / np - mean * mean) / variance;
+    }
+
+    /**
+     * Returning a new root random stream. It is derived from the seed if the
+     * seed is set
+     *
+     * @return
+     */
+    public SplittableRandom newRandom() {
+        return seed == null ? new SplittableRandom(ThreadLocalRandom.current().nextLong())
+                : new SplittableRandom(seed);
+    }
+
+    /**
+     * A normally distributed random number by the Box-Muller method
+     *
+     * @param rnd
+     * @return
+     */
+    static double nextGaussian(SplittableRandom rnd) {
+        return Math.sqrt(-2 * Math.log(1 - rnd.nextDouble())) * Math.cos(2 * Math.PI * rnd.nextDouble());
+    }
+
+    /**
+     * A coordinate of a randomly shifted quasi-random point
+     *
+     * @param u
+     * @param shift
+     * @return
+     */
+    private static double shiftedPoint(double u, double shift) {
+        double x = u + shift;
+        return x < 1 ? x : x - 1;
+    }
+
+    /**
+     * Running tasks on the executor and returning their results in the order
+     * of the tasks. If the calling thread is interrupted the cancellation flag
+     * is raised and all tasks are cancelled
+     *
+     * @param <T>
+     * @param tasks
+     * @param cancelled flag checked by the tasks
+     * @return
+     * @throws InterruptedException
+     */
+    private <T> List<T> invokeTasks(List<Callable<T>> tasks, AtomicBoolean cancelled) throws InterruptedException {
+        ExecutorService execs = getExecutor();
+        List<Future<T>> futures = new ArrayList<>();
+        List<T> results = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(execs.submit(task));
+        }
+        try {
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
         } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
+            cancelled.set(true);
+            for (Future<T> f : futures) {
+                f.cancel(true);
+            }
+            throw ex;
+        } catch (ExecutionException ex) {
+            cancelled.set(true);
+            throw new RuntimeException(ex.getCause());
         }
-        execs.shutdownNow();
-        this.geometricFactor = 8 * wdx * wdy * len * sum.sum() / itNumber / threadNumber;
+        return results;
     }
 
     /**
@@ -295,13 +777,26 @@ public class ThompsonSource implements Cloneable {
      * @return
      */
     public double directionFrequencyFluxNoSpread(Vector n, Vector v, double e) {
-        double K, th;
-        th = (1 - n.innerProduct(v)) * 2;
-        K = Math.pow((Math.sqrt(e / lp.getPhotonEnergy() / (1 - e * th / lp.getPhotonEnergy() / 4)) - 2 * eb.getGamma()), 2)
-                / 4 / Math.pow(eb.getGamma() * eb.getDelgamma(), 2);
-        return getTotalFlux() * e * 3.0 / 64 / Math.PI / Math.sqrt(Math.PI) / eb.getDelgamma() / eb.getGamma() / lp.getPhotonEnergy()
-                * Math.sqrt(e / lp.getPhotonEnergy()) * (Math.pow((1 - e * th / lp.getPhotonEnergy() / 2), 2) + 1)
-                / Math.sqrt(1 - e * th / lp.getPhotonEnergy() / 4) * Math.exp(-K);
+        return directionFrequencyFluxNoSpread(n.get(0), n.get(1), n.get(2), v.get(0), v.get(1), v.get(2), e);
+    }
+
+    /**
+     * A method calculating the flux density in a given direction for a given
+     * X-ray photon energy without taking into account electron transversal
+     * pulse spread. Primitive version which does not allocate any objects
+     *
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param e X-ray energy
+     * @return
+     */
+    public double directionFrequencyFluxNoSpread(double nx, double ny, double nz,
+            double vx, double vy, double vz, double e) {
+        return snapshot.directionFrequencyFluxNoSpread(nx, ny, nz, vx, vy, vz, e);
     }
 
     /**
@@ -316,41 +811,30 @@ public class ThompsonSource implements Cloneable {
      */
     public double[] directionFrequencyPolarizationNoSpread(Vector n, Vector v, double e) {
         double[] array = new double[NUMBER_OF_POL_PARAM];
-        double K, th, m11, m22, m12, mlt, cs, sn;
-        th = (1 - n.innerProduct(v)) * 2;
-        mlt = 1 - e * th / lp.getPhotonEnergy() / 2;
-        K = Math.pow((Math.sqrt(e / lp.getPhotonEnergy() / (1 - e * th / lp.getPhotonEnergy() / 4)) - 2 * eb.getGamma()), 2)
-                / 4 / Math.pow(eb.getGamma() * eb.getDelgamma(), 2);
-        m11 = getTotalFlux() * e * 3.0 / 32 / Math.PI / Math.sqrt(Math.PI) / eb.getDelgamma() / eb.getGamma() / lp.getPhotonEnergy()
-                * Math.sqrt(e / lp.getPhotonEnergy()) / Math.sqrt(1 - e * th / lp.getPhotonEnergy() / 4) * Math.exp(-K);
-        m12 = m11 * mlt;
-        m22 = m12 * mlt;
-        //Determine the polarization rotation angle
-        double vn = v.innerProduct(n);
-        double norm = Math.sqrt((1 - vn * vn) * (1 - n.get(0) * n.get(0)));
-        if (norm != 0) {
-            cs = (v.get(0) - n.get(0) * vn) / norm;
-            sn = (n.get(1) * v.get(2) - n.get(2) * v.get(1)) / norm;
-        } else {
-            cs = 1;
-            sn = 0;
-        }
-        double cs2 = 2 * cs * cs - 1, sn2 = 2 * sn * cs;
-        double cs2cs2 = cs2 * cs2, sn2sn2 = sn2 * sn2, cs2sn2 = sn2 * cs2;
-        //Calculating Stocks parameters
-        array[0] = (m11 + m22 - (cs2 * lp.getPolarization()[2] + sn2 * lp.getPolarization()[0]) * (m11 - m22)) / 2;
-        array[3] = (cs2 * (m22 - m11) + lp.getPolarization()[2] * (cs2cs2 * (m11 + m22) + 2 * sn2sn2 * m12)
-                + lp.getPolarization()[0] * cs2sn2 * (m11 + m22 - 2 * m12)) / 2;
-        array[1] = (sn2 * (m22 - m11) + lp.getPolarization()[0] * (sn2sn2 * (m11 + m22) + 2 * cs2cs2 * m12)
-                + lp.getPolarization()[2] * cs2sn2 * (m11 + m22 - 2 * m12)) / 2;
-        array[2] = lp.getPolarization()[1] * m12;
-        //If intensity is zero tehn set it as unity
-        if (array[0] == 0) {
-            array[0] = 1;
-        }
+        directionFrequencyPolarizationNoSpread(n.get(0), n.get(1), n.get(2), v.get(0), v.get(1), v.get(2), e, array);
         return array;
     }
 
+    /**
+     * A method calculating the Stocks parameters density in a given direction
+     * for a given X-ray photon energy without taking into account electron
+     * transversal pulse spread. Primitive version which writes the result into
+     * a caller-supplied array and does not allocate any objects
+     *
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param e X-ray energy
+     * @param array an array of length NUMBER_OF_POL_PARAM for the results
+     */
+    public void directionFrequencyPolarizationNoSpread(double nx, double ny, double nz,
+            double vx, double vy, double vz, double e, double[] array) {
+        snapshot.directionFrequencyPolarizationNoSpread(nx, ny, nz, vx, vy, vz, e, array);
+    }
+
     /**
      * A method calculating the flux density in a given direction for a given
      * X-ray photon energy taking into account electron transversal pulse spread
@@ -361,15 +845,13 @@ public class ThompsonSource implements Cloneable {
      * @return
      */
     public double directionFrequencyFluxSpread(Vector n, Vector v0, double e) {
-        BaseAbstractUnivariateIntegrator integrator = new RombergIntegrator(getPrecision(), RombergIntegrator.DEFAULT_ABSOLUTE_ACCURACY,
-                RombergIntegrator.DEFAULT_MIN_ITERATIONS_COUNT, RombergIntegrator.ROMBERG_MAX_ITERATIONS_COUNT);
-        UnivariateFunction func
-                = new UnivariateFrequencyFluxSpreadOuter(e, v0, n);
-        try {
-            return integrator.integrate(MAXIMAL_NUMBER_OF_EVALUATIONS, func, 0.0, 2 * Math.PI);
-        } catch (TooManyEvaluationsException ex) {
-            return 0;
-        }
+        final SourceSnapshot ss = snapshot;
+        final SpectrumCache cache = spectrumCache;
+        final double nx = n.get(0), ny = n.get(1), nz = n.get(2);
+        DoubleSupplier f = () -> getSpreadCubature().integrate((vx, vy, vz)
+                -> ss.directionFrequencyFluxNoSpread(nx, ny, nz, vx, vy, vz, e), v0.get(0), v0.get(1));
+        return cache == null ? f.getAsDouble()
+                : cache.getFlux(ss, getPrecision(), nx, ny, nz, v0.get(0), v0.get(1), e, f);
     }
 
     /**
@@ -384,180 +866,95 @@ public class ThompsonSource implements Cloneable {
      * @throws java.lang.InterruptedException
      */
     public double[] directionFrequencyPolarizationSpread(final Vector n, final Vector v0, final double e) throws InterruptedException {
-        //An array for results
-        double[] array = new double[NUMBER_OF_POL_PARAM];
-        //Creating a latch for threads
-        CountDownLatch lt = new CountDownLatch(NUMBER_OF_POL_PARAM);
-        //Creating a pool of threads for calculations
-        ExecutorService execs = Executors.newFixedThreadPool(threadNumber);
-        //Calculating the polarization tensor elements
-        for (int i = 0; i < NUMBER_OF_POL_PARAM; i++) {
-            int[] ia = new int[]{i};
-            execs.execute(() -> {
-                UnivariateFunction func = new UnivariateFrequencyPolarizationSpreadOuter(e, v0, n, ia[0]);
-                try {
-                    //Creating a separate inegrator for each thread
-                    array[ia[0]] = new RombergIntegrator(getPrecision(), RombergIntegrator.DEFAULT_ABSOLUTE_ACCURACY,
-                            RombergIntegrator.DEFAULT_MIN_ITERATIONS_COUNT, RombergIntegrator.ROMBERG_MAX_ITERATIONS_COUNT).
-                            integrate(MAXIMAL_NUMBER_OF_EVALUATIONS, func, 0.0, 2 * Math.PI)
-                            - getShiftfactor() * SHIFT * Math.PI * INT_RANGE * eb.getSpread() * INT_RANGE * eb.getSpread();
-                } catch (TooManyEvaluationsException ex) {
-                    array[ia[0]] = 0;
-                }
-                lt.countDown();
-            });
-        }
-        //Waiting for an interruption and shuting down threads if interrupted
-        try {
-            lt.await();
-        } catch (InterruptedException ex) {
-            execs.shutdownNow();
-            throw ex;
-        }
-        execs.shutdownNow();
-        return array;
-    }
-
-    /**
-     * Getting a numerical factor to improve integral convergence
-     *
-     * @return the factor
-     */
-    public double getShiftfactor() {
-        return shiftfactor;
+        final SpectrumCache cache = spectrumCache;
+        return cache == null ? calculatePolarizationSpread(n, v0, e)
+                : cache.getPolarization(snapshot, getPrecision(), n.get(0), n.get(1), n.get(2),
+                        v0.get(0), v0.get(1), e, () -> calculatePolarizationSpread(n, v0, e));
     }
 
     /**
-     * Setting a numerical factor to improve integral convergence
+     * A multi-threaded calculation of the full polarization tensor density
+     * taking into account electron transversal pulse spread without caching
      *
-     * @param shift the factor to set
-     */
-    public void setShiftfactor(double shift) {
-        this.shiftfactor = shift;
-    }
-
-    /**
-     * An auxiliary class for Romberg integrator for flux calculations
+     * @param n direction
+     * @param v0 normalized electron velocity
+     * @param e X-ray energy
+     * @return
+     * @throws java.lang.InterruptedException
      */
-    private class UnivariateFrequencyFluxSpreadOuter implements UnivariateFunction {
-
-        private final double e;
-        private final Vector n, v0;
-        private final BaseAbstractUnivariateIntegrator inergrator;
-
-        public UnivariateFrequencyFluxSpreadOuter(double e, Vector v0, Vector n) {
-            this.e = e;
-            this.v0 = v0;
-            this.n = n;
-            this.inergrator = new RombergIntegrator(getPrecision(), RombergIntegrator.DEFAULT_ABSOLUTE_ACCURACY,
-                    RombergIntegrator.DEFAULT_MIN_ITERATIONS_COUNT, RombergIntegrator.ROMBERG_MAX_ITERATIONS_COUNT);
+    private double[] calculatePolarizationSpread(final Vector n, final Vector v0, final double e) throws InterruptedException {
+        final SourceSnapshot ss = snapshot;
+        final SpreadCubature cub = getSpreadCubature();
+        final double nx = n.get(0), ny = n.get(1), nz = n.get(2);
+        //Splitting the initial cubature cells between tasks
+        final int ntasks = Math.max(1, Math.min(PARALLEL_CHUNKS, cub.size() / MIN_CELLS_PER_TASK));
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        List<Callable<SpreadCubature.Partition>> tasks = new ArrayList<>();
+        //Calculating all polarization tensor elements in one pass
+        for (int i = 0; i < ntasks; i++) {
+            final int from = cub.size() * i / ntasks, to = cub.size() * (i + 1) / ntasks;
+            tasks.add(() -> cub.start((vx, vy, vz, stocks)
+                    -> ss.directionFrequencyPolarizationNoSpread(nx, ny, nz, vx, vy, vz, e, stocks),
+                    NUMBER_OF_POL_PARAM, v0.get(0), v0.get(1), from, to));
         }
-
-        @Override
-        public double value(double phi) {
-            UnivariateFunction func
-                    = new UnivariateFrequencyFluxSpreadInner(phi, e, v0, n);
-            try {
-                return inergrator.integrate(MAXIMAL_NUMBER_OF_EVALUATIONS, func, 0.0, INT_RANGE * eb.getSpread());
-            } catch (TooManyEvaluationsException ex) {
-                return 0;
+        List<SpreadCubature.Partition> partitions = invokeTasks(tasks, cancelled);
+        //The error is shared between the tasks relative to the initial estimate
+        double estimate = 0;
+        for (SpreadCubature.Partition p : partitions) {
+            estimate += p.getResult()[0];
+        }
+        final double tolerance = getPrecision() * Math.abs(estimate) / ntasks;
+        List<Callable<double[]>> refinements = new ArrayList<>();
+        for (SpreadCubature.Partition p : partitions) {
+            refinements.add(() -> {
+                p.refine(tolerance);
+                return p.getResult();
+            });
+        }
+        //Summing the partial results in a fixed order
+        double[] array = new double[NUMBER_OF_POL_PARAM];
+        for (double[] p : invokeTasks(refinements, cancelled)) {
+            for (int k = 0; k < NUMBER_OF_POL_PARAM; k++) {
+                array[k] += p[k];
             }
         }
+        return array;
     }
 
     /**
-     * An auxiliary class for Romberg integrator for polarization calculations
+     * Returning the cubature over the electron angular distribution for the
+     * current spreads and precision
+     *
+     * @return
      */
-    private class UnivariateFrequencyPolarizationSpreadOuter implements UnivariateFunction {
-
-        private final double e;
-        private final Vector n, v0;
-        private final int index;
-        private final BaseAbstractUnivariateIntegrator inergrator;
-
-        public UnivariateFrequencyPolarizationSpreadOuter(double e, Vector v0, Vector n, int index) {
-            this.e = e;
-            this.v0 = v0;
-            this.n = n;
-            this.index = index;
-            this.inergrator = new RombergIntegrator(getPrecision(), RombergIntegrator.DEFAULT_ABSOLUTE_ACCURACY,
-                    RombergIntegrator.DEFAULT_MIN_ITERATIONS_COUNT, RombergIntegrator.ROMBERG_MAX_ITERATIONS_COUNT);
-        }
-
-        @Override
-        public double value(double phi) {
-            if (Thread.currentThread().isInterrupted()) {
-                Thread.currentThread().interrupt();
-                return 0;
-            }
-            UnivariateFunction func
-                    = new UnivariateFrequencyPolarizationSpreadInner(phi, e, v0, n, index);
-            try {
-                return inergrator.integrate(MAXIMAL_NUMBER_OF_EVALUATIONS, func, 0.0, INT_RANGE * eb.getSpread());
-            } catch (TooManyEvaluationsException ex) {
-                return 0;
-            }
-        }
+    private SpreadCubature getSpreadCubature() {
+        return SpreadCubature.getCubature(snapshot.getXSpread(), snapshot.getYSpread(), getPrecision());
     }
 
     /**
-     * An auxiliary class for Romberg integrator for flux calculations
+     * Getting a numerical factor formerly used to improve integral
+     * convergence. The spread integrals are now calculated by adaptive
+     * cubature and do not use it
+     *
+     * @return the factor
+     * @deprecated the factor has no effect on the calculations
      */
-    private class UnivariateFrequencyFluxSpreadInner implements UnivariateFunction {
-
-        private final double snphi, csphi, e;
-        private final Vector n, v0;
-
-        public UnivariateFrequencyFluxSpreadInner(double phi, double e, Vector v0, Vector n) {
-            this.snphi = Math.sin(phi);
-            this.csphi = Math.cos(phi);
-            this.e = e;
-            this.n = n;
-            this.v0 = v0;
-        }
-
-        @Override
-        public double value(double theta) {
-            double u, sn = Math.sin(theta);
-            Vector v = new BasicVector(new double[]{sn * csphi, sn * snphi, Math.cos(theta)});
-            Vector dv = v.subtract(v0);
-            u = sn * directionFrequencyFluxNoSpread(n, v, e) * eb.angleDistribution(dv.get(0), dv.get(1));
-            return new Double(u).isNaN() ? 0 : u;
-        }
+    @Deprecated
+    public double getShiftfactor() {
+        return shiftfactor;
     }
 
     /**
-     * An auxiliary class for Romberg integrator for polarization calculations
+     * Setting a numerical factor formerly used to improve integral
+     * convergence. The spread integrals are now calculated by adaptive
+     * cubature and do not use it
+     *
+     * @param shift the factor to set
+     * @deprecated the factor has no effect on the calculations
      */
-    private class UnivariateFrequencyPolarizationSpreadInner implements UnivariateFunction {
-
-        private final double snphi, csphi, e;
-        private final int index;
-        private final Vector n, v0;
-
-        public UnivariateFrequencyPolarizationSpreadInner(double phi, double e, Vector v0, Vector n, int index) {
-            this.snphi = Math.sin(phi);
-            this.csphi = Math.cos(phi);
-            this.e = e;
-            this.n = n;
-            this.index = index;
-            this.v0 = v0;
-        }
-
-        @Override
-        public double value(double theta) {
-            if (Thread.currentThread().isInterrupted()) {
-                Thread.currentThread().interrupt();
-                return 0;
-            }
-            double u, sn = Math.sin(theta);
-            Vector v = new BasicVector(new double[]{sn * csphi, sn * snphi, Math.cos(theta)});
-            Vector dv = v.subtract(v0);
-            // Normalization to the peak value
-            u = theta * (directionFrequencyPolarizationNoSpread(n, v, e)[index] * eb.angleDistribution(dv.get(0), dv.get(1))
-                    + getShiftfactor() * SHIFT);
-            return new Double(u).isNaN() ? 0 : u;
-        }
+    @Deprecated
+    public void setShiftfactor(double shift) {
+        this.shiftfactor = shift;
     }
 
     /**
@@ -667,55 +1064,143 @@ public class ThompsonSource implements Cloneable {
      * @return
      */
     public double volumeFlux(Vector r) {
-        double u, z0, z, z1, x0, x, x1, y0, y, y1, sn, cs, K, len;
-        len = Math.sqrt(lp.getLength() * lp.getLength()
-                + eb.getLength() * eb.getLength());
-        sn = lp.getDirection().get(1);
-        cs = lp.getDirection().get(2);
-        x0 = eb.getShift().get(0);
-        y0 = eb.getShift().get(1);
-        z0 = eb.getShift().get(2);
-        x = r.get(0);
-        y = r.get(1);
-        z = r.get(2);
-        x1 = x;
-        y1 = -sn * z + cs * y;
-        z1 = cs * z + sn * y;
-        K = Math.pow((z + z1 - z0 - lp.getDelay()) / len, 2)
-                + Math.pow((x - x0), 2) / eb.getxWidth2(z - z0) + Math.pow((y - y0), 2) / eb.getyWidth2(z - z0)
-                + (Math.pow(x1, 2) + Math.pow(y1, 2)) / lp.getWidth2(z1);
-        u = 2.0 / Math.pow(Math.PI, 1.5) * Math.sqrt((lp.getWidth2(0.0)
-                + eb.getxWidth2(0.0)) * (lp.getWidth2(0.0)
-                + eb.getyWidth2(0.0))) / len / lp.getWidth2(z1) / eb.getxWidth(z - z0) / eb.getyWidth(z - z0) * Math.exp(-K);
-        return new Double(u).isNaN() ? 0 : u;
+        return volumeFlux(r.get(0), r.get(1), r.get(2));
+    }
+
+    /**
+     * An auxiliary method calculating volume density of the X-ray source.
+     * Primitive version which does not allocate any objects
+     *
+     * @param x spatial position, x coordinate
+     * @param y spatial position, y coordinate
+     * @param z spatial position, z coordinate
+     * @return
+     */
+    public double volumeFlux(double x, double y, double z) {
+        return snapshot.volumeFlux(x, y, z);
+    }
+
+    /**
+     * Mirror symmetries of the direction and energy resolved densities for a
+     * given mean electron velocity. The bunch and pulse geometry enters them
+     * only through the geometric factor and the electron angular distribution
+     * is centered, so a density is symmetric in theta_x if vx is zero and in
+     * theta_y if vy is zero. The polarization is not covered
+     *
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @return an array with the theta_x and theta_y symmetries
+     */
+    public boolean[] getDirectionSymmetry(double vx, double vy) {
+        return new boolean[]{vx == 0, vy == 0};
+    }
+
+    /**
+     * Whether the flux density and X-ray energy without spread depend on the
+     * direction only through its polar angle. They depend on the direction
+     * through the product nv, which reduces to nz if the mean electron
+     * velocity is along the z axis
+     *
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @return
+     */
+    public boolean isDirectionRadial(double vx, double vy) {
+        return vx == 0 && vy == 0;
+    }
+
+    /**
+     * A method giving the flux density in a given direction
+     *
+     * @param n direction
+     * @param v normalized electron velocity
+     * @return
+     */
+    public double directionFlux(Vector n, Vector v) {
+        return directionFlux(n.get(0), n.get(1), n.get(2), v.get(0), v.get(1), v.get(2));
+    }
+
+    /**
+     * A method giving the flux density in a given direction. Primitive version
+     * which does not allocate any objects
+     *
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @return
+     */
+    public double directionFlux(double nx, double ny, double nz, double vx, double vy, double vz) {
+        return snapshot.directionFlux(nx, ny, nz, vx, vy, vz) * getGeometricFactor();
+    }
+
+    /**
+     * A method giving the flux density for an array of directions and writing
+     * the results into the output array
+     *
+     * @param nx directions, x components
+     * @param ny directions, y components
+     * @param nz directions, z components
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param out array for the results
+     * @param length number of directions to evaluate
+     */
+    public void directionFlux(double[] nx, double[] ny, double[] nz,
+            double vx, double vy, double vz, double[] out, int length) {
+        double gf = getGeometricFactor();
+        snapshot.directionFlux(nx, ny, nz, vx, vy, vz, out, length);
+        for (int i = 0; i < length; i++) {
+            out[i] *= gf;
+        }
     }
 
     /**
-     * A method giving the flux density in a given direction
+     * A method calculating X-ray energy in a given direction
      *
      * @param n direction
      * @param v normalized electron velocity
      * @return
      */
-    public double directionFlux(Vector n, Vector v) {
-        double gamma2, th;
-        th = (1 - n.innerProduct(v)) * 2;
-        gamma2 = eb.getGamma() * eb.getGamma();
-        return getTotalFlux() * 3.0 / 2 / Math.PI * gamma2 * (1 + Math.pow(th * gamma2, 2))
-                / Math.pow((1 + gamma2 * th), 4) * getGeometricFactor();
+    public double directionEnergy(Vector n, Vector v) {
+        return directionEnergy(n.get(0), n.get(1), n.get(2), v.get(0), v.get(1), v.get(2));
     }
 
     /**
-     * A method calculating X-ray energy in a given direction
+     * A method calculating X-ray energy in a given direction. Primitive version
+     * which does not allocate any objects
      *
-     * @param n direction
-     * @param v normalized electron velocity
+     * @param nx direction, x component
+     * @param ny direction, y component
+     * @param nz direction, z component
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
      * @return
      */
-    public double directionEnergy(Vector n, Vector v) {
-        double mv;
-        mv = Math.sqrt(1.0 - 1.0 / eb.getGamma() / eb.getGamma());
-        return 2 * lp.getPhotonEnergy() / (1 - n.innerProduct(v) * mv);
+    public double directionEnergy(double nx, double ny, double nz, double vx, double vy, double vz) {
+        return snapshot.directionEnergy(nx, ny, nz, vx, vy, vz);
+    }
+
+    /**
+     * A method calculating X-ray energy for an array of directions and writing
+     * the results into the output array
+     *
+     * @param nx directions, x components
+     * @param ny directions, y components
+     * @param nz directions, z components
+     * @param vx normalized electron velocity, x component
+     * @param vy normalized electron velocity, y component
+     * @param vz normalized electron velocity, z component
+     * @param out array for the results
+     * @param length number of directions to evaluate
+     */
+    public void directionEnergy(double[] nx, double[] ny, double[] nz,
+            double vx, double vy, double vz, double[] out, int length) {
+        snapshot.directionEnergy(nx, ny, nz, vx, vy, vz, out, length);
     }
 
     /**
@@ -795,8 +1280,9 @@ public class ThompsonSource implements Cloneable {
         } catch (TooManyEvaluationsException ex) {
             mlt = 0;
         }
+        directionFrequencyPolarizationNoSpread(n.get(0), n.get(1), n.get(2), v.get(0), v.get(1), v.get(2), e, array);
         for (int i = 0; i < NUMBER_OF_POL_PARAM; i++) {
-            array[i] = mlt * directionFrequencyPolarizationNoSpread(n, v, e)[i];
+            array[i] *= mlt;
         }
         return array;
     }
@@ -850,8 +1336,9 @@ public class ThompsonSource implements Cloneable {
         } catch (TooManyEvaluationsException ex) {
             mlt = 0;
         }
+        double[] stocks = directionFrequencyPolarizationSpread(n, v, e);
         for (int i = 0; i < NUMBER_OF_POL_PARAM; i++) {
-            array[i] = mlt * directionFrequencyPolarizationSpread(n, v, e)[i];
+            array[i] = mlt * stocks[i];
         }
         return array;
     }
@@ -871,9 +1358,8 @@ public class ThompsonSource implements Cloneable {
 
         @Override
         public double value(double x) {
-            Vector r;
-            r = r0.add(n0.multiply(x));
-            double y = volumeFlux(r);
+            double y = volumeFlux(r0.get(0) + n0.get(0) * x, r0.get(1) + n0.get(1) * x,
+                    r0.get(2) + n0.get(2) * x);
             if (n0.get(0) + n0.get(1) + n0.get(2) == 0) {
                 throw new LocalException(x);
             }
@@ -899,94 +1385,428 @@ public class ThompsonSource implements Cloneable {
     }
 
     /**
-     * Returning a random ray
+     * A random stream for the ray generation. It accumulates the partial flux
+     * and the number of iterations of the rays generated from it so that the
+     * results can be added to the source in a fixed order
+     */
+    public static class RayStream {
+
+        private final SplittableRandom random;
+        private double partialFlux = 0;
+        private int counter = 0;
+        private int rays = 0;
+        private int samples = 0;
+        private RayProposal proposal = null;
+        private double envelope = 0, positionEnvelope = 0;
+        private int restarts = 0;
+
+        /**
+         * Constructor
+         *
+         * @param random
+         */
+        public RayStream(SplittableRandom random) {
+            this.random = random;
+        }
+
+        /**
+         * Sum of the estimates of the flux in the phase space volume of ray
+         * generation accumulated by the stream
+         *
+         * @return
+         */
+        public double getPartialFlux() {
+            return partialFlux;
+        }
+
+        /**
+         * Number of ray iterations in the stream
+         *
+         * @return
+         */
+        public int getCounter() {
+            return counter;
+        }
+
+        /**
+         * Number of rays generated from the stream
+         *
+         * @return
+         */
+        public int getRays() {
+            return rays;
+        }
+
+        /**
+         * Number of times a chunk of rays was drawn again because the
+         * rejection envelope was exceeded
+         *
+         * @return
+         */
+        public int getRestarts() {
+            return restarts;
+        }
+    }
+
+    /**
+     * Returning a random ray. The ray is drawn from an independent random
+     * stream and its statistics are added to the source immediately, so the
+     * rays are not reproducible
      *
      * @return an array with ray parameters
      * @throws java.lang.InterruptedException
      */
     public double[] getRay() throws InterruptedException {
+        RayStream stream = new RayStream(new SplittableRandom(ThreadLocalRandom.current().nextLong()));
+        double[] ray = getRay(stream);
+        addRayStream(stream);
+        return ray;
+    }
+
+    /**
+     * Adding the partial flux and the number of iterations accumulated by a
+     * random stream to the source
+     *
+     * @param stream
+     */
+    public void addRayStream(RayStream stream) {
+        partialFlux.add(stream.partialFlux);
+        counter.addAndGet(stream.counter);
+        rays.addAndGet(stream.rays);
+        fluxSamples.addAndGet(stream.samples);
+        stream.partialFlux = 0;
+        stream.counter = 0;
+        stream.rays = 0;
+        stream.samples = 0;
+    }
+
+    /**
+     * Returning a random ray drawn from a given random stream. The partial
+     * flux and the number of iterations are accumulated in the stream
+     *
+     * @param stream
+     * @return an array with ray parameters
+     * @throws java.lang.InterruptedException
+     */
+    public double[] getRay(RayStream stream) throws InterruptedException {
+        return getRays(stream, 1, new AtomicBoolean())[0];
+    }
+
+    /**
+     * Returning a chunk of random rays drawn from a given random stream. All
+     * rays of the chunk are accepted against the same rejection envelopes. If
+     * a proposed ray exceeds them, the envelopes are raised for all streams
+     * and the whole chunk is drawn again. The partial flux and the number of
+     * iterations of all drawn proposals are accumulated in the stream
+     *
+     * @param stream
+     * @param number number of rays
+     * @param cancelled cancellation flag
+     * @return an array of arrays with ray parameters
+     * @throws java.lang.InterruptedException
+     */
+    public double[][] getRays(RayStream stream, int number, AtomicBoolean cancelled) throws InterruptedException {
+        double[][] rays = new double[number][];
+        stream.proposal = null;
+        for (int i = 0; i < number; i++) {
+            if (cancelled.get()) {
+                throw new InterruptedException();
+            }
+            rays[i] = drawRay(stream);
+            if (rays[i] == null) {
+                //Discarding the rays drawn with the lower envelopes
+                stream.rays -= i;
+                stream.restarts++;
+                i = -1;
+            }
+        }
+        return rays;
+    }
+
+    /**
+     * Drawing a random ray against the envelopes the stream has adopted. If
+     * they are exceeded, the envelopes of the proposal are raised and null is
+     * returned
+     *
+     * @param stream
+     * @return an array with ray parameters or null if the chunk has to be
+     * drawn again
+     * @throws java.lang.InterruptedException
+     */
+    private double[] drawRay(RayStream stream) throws InterruptedException {
+        SplittableRandom rnd = stream.random;
         double[] ray = new double[NUMBER_OF_COLUMNS];
-        Matrix T;
-        Vector n = new BasicVector(new double[]{0.0, 0.0, 1.0});
-        Vector r = new BasicVector(new double[]{0.0, 0.0, 0.0});
-        Vector n0 = new BasicVector(new double[]{0.0, 1.0, 0.0}), As;
-        double prob0, prob, EMax, mult = 2, factor, sum = 0;
-        double[] pol, polParam;
-        EMax = directionEnergy(n, n);
-        factor = 64 * Math.max(eb.getxWidth(0.0), lp.getWidth(0.0)) * Math.max(eb.getyWidth(0.0), lp.getWidth(0.0))
-                * Math.max(eb.getLength(), lp.getLength()) * 4 * rayXAnglerange * rayYAnglerange
-                * (maxEnergy - minEnergy);
-        prob0 = directionFrequencyVolumePolarizationNoSpread(r, n, new BasicVector(new double[]{0.0, 0.0, 1.0}), EMax)[0];
-        if (iseSpread()) {
-            prob0 *= eb.angleDistribution(0, 0);
-            factor *= 4 * mult * mult * eb.getXSpread() * eb.getYSpread();
+        double prob, q;
+        double[] v = new double[3], polParam = new double[NUMBER_OF_POL_PARAM];
+        SourceSnapshot ss = snapshot;
+        if (rayTableResolution > 0) {
+            //Drawing the ray from the tables without rejection
+            RayTable table = getRayTable();
+            table.sample(rnd, ray, polParam);
+            stream.counter++;
+            stream.samples++;
+            stream.rays++;
+            stream.partialFlux += table.getTotal() / (1 - table.getOutside()) / ray[10];
+            return setRayPolarization(ray, polParam, rnd);
         }
-        do {
+        RayProposal proposal = getRayProposal(ss);
+        if (stream.proposal != proposal) {
+            //A chunk started with other parameters is drawn again
+            boolean restart = stream.proposal != null;
+            stream.proposal = proposal;
+            stream.envelope = proposal.getEnvelope();
+            stream.positionEnvelope = proposal.getPositionEnvelope();
+            if (restart) {
+                return null;
+            }
+        }
+        if (!iseSpread()) {
+            /*
+             Without the spread the density is a product of the volume flux
+             and the spectral angular density, so the position and the
+             direction and energy are accepted independently
+             */
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                stream.counter++;
+                q = proposal.samplePosition(rnd, ray);
+                prob = ss.volumeFlux(ray[0], ray[2], ray[1]) / q;
+                if (!Double.isNaN(prob)) {
+                    if (prob > stream.positionEnvelope) {
+                        proposal.raisePositionEnvelope(RAY_ENVELOPE_MARGIN * prob);
+                        stream.proposal = null;
+                        return null;
+                    }
+                    if (prob >= stream.positionEnvelope * rnd.nextDouble()) {
+                        break;
+                    }
+                }
+            }
+        }
+        while (true) {
             if (Thread.currentThread().isInterrupted()) {
                 throw new InterruptedException();
             }
-            ray[0] = 2 * (2 * Math.random() - 1.0) * Math.max(eb.getxWidth(0.0), lp.getWidth(0.0));
-            ray[2] = 2 * (2 * Math.random() - 1.0) * Math.max(eb.getyWidth(0.0), lp.getWidth(0.0));
-            ray[1] = 2 * (2 * Math.random() - 1.0) * Math.max(eb.getLength(), lp.getLength());
-            r.set(0, ray[0]);
-            r.set(1, ray[2]);
-            r.set(2, ray[1]);
-            ray[3] = rayXAnglerange * (2 * Math.random() - 1.0);
-            ray[5] = rayYAnglerange * (2 * Math.random() - 1.0);
-            n.set(0, ray[3]);
-            n.set(1, ray[5]);
-            n.set(2, 1.0);
-            n = n.divide(n.fold(Vectors.mkEuclideanNormAccumulator()));
-            ray[3] = n.get(0);
-            ray[5] = n.get(1);
-            ray[4] = n.get(2);
-            ray[10] = Math.random() * (maxEnergy - minEnergy) + minEnergy;
+            stream.counter++;
+            stream.samples++;
             if (iseSpread()) {
-                double thetax = mult * eb.getXSpread() * (2 * Math.random() - 1);
-                double thetay = mult * eb.getYSpread() * (2 * Math.random() - 1);
-                Vector v = new BasicVector(new double[]{thetax, thetay, Math.sqrt(1 - thetax * thetax - thetay * thetay)});
-                if (ksi == null) {
-                    polParam = directionFrequencyVolumePolarizationNoSpread(r, n, v, ray[10]);
-                } else {
-                    polParam = new double[]{directionFrequencyVolumeFluxNoSpread(r, n, v, ray[10]), ksi[0], ksi[1], ksi[2]};
-                }
-                prob = polParam[0] * eb.angleDistribution(thetax, thetay);
+                q = proposal.sample(rnd, ray, v);
+                prob = q == 0 ? Double.NaN : rayDensity(ss, ray, v, polParam);
             } else {
-                if (ksi == null) {
-                    polParam = directionFrequencyVolumePolarizationNoSpread(r, n, new BasicVector(new double[]{0.0, 0.0, 1.0}), ray[10]);
-                } else {
-                    polParam = new double[]{directionFrequencyVolumeFluxNoSpread(r, n, new BasicVector(new double[]{0.0, 0.0, 1.0}), ray[10]), ksi[0], ksi[1], ksi[2]};
-                }
-                prob = polParam[0];
+                q = proposal.sampleDirection(rnd, ray, v);
+                prob = q == 0 ? Double.NaN : raySpectralDensity(ss, ray, v, polParam);
             }
-            if (!new Double(prob).isNaN()) {
-                sum += prob / ray[10];
+            if (Double.isNaN(prob)) {
+                continue;
             }
-            counter.incrementAndGet();
-        } while (prob / prob0 < Math.random() || (new Double(prob)).isNaN());
-        // Calculating the rotated polarization vector and getting the full polarizaation state
-        n = new BasicVector(new double[]{ray[3], ray[4], ray[5]});
-        T = getTransform(n, n0);
+            stream.partialFlux += (iseSpread() ? 1 : proposal.getPositionIntegral()) * prob / q / ray[10];
+            if (prob / q > stream.envelope) {
+                proposal.raiseEnvelope(RAY_ENVELOPE_MARGIN * prob / q);
+                stream.proposal = null;
+                return null;
+            }
+            if (prob / q >= stream.envelope * rnd.nextDouble()) {
+                break;
+            }
+        }
+        stream.rays++;
+        return setRayPolarization(ray, polParam, rnd);
+    }
+
+    /**
+     * Setting the electrical vectors and phases of a ray with a given
+     * direction. The vectors are rotated from the frame of the y axis to the
+     * ray direction by the closed-form Rodrigues rotation
+     *
+     * @param ray
+     * @param polParam Stocks parameters density for the ray, overwritten by
+     * the amplitudes and phases
+     * @param rnd
+     * @return the ray
+     */
+    private double[] setRayPolarization(double[] ray, double[] polParam, SplittableRandom rnd) {
         //Checking if polarization is pre-specified
-        pol = (ksi != null) ? getPolarization(ksi)
-                : getPolarization(new double[]{polParam[1] / polParam[0], polParam[2] / polParam[0], polParam[3] / polParam[0]});
-        //Rotating the ray electrical vectors
-        As = T.multiply(new BasicVector(new double[]{1.0, 0.0, 0.0})).multiply(pol[0]);
-        ray[6] = As.get(0);
-        ray[7] = As.get(1);
-        ray[8] = As.get(2);
-        As = T.multiply(new BasicVector(new double[]{0.0, 0.0, 1.0})).multiply(pol[1]);
-        ray[15] = As.get(0);
-        ray[16] = As.get(1);
-        ray[17] = As.get(2);
+        if (ksi != null) {
+            getPolarization(ksi[0], ksi[1], ksi[2], rnd, polParam);
+        } else {
+            getPolarization(polParam[1] / polParam[0], polParam[2] / polParam[0], polParam[3] / polParam[0], rnd, polParam);
+        }
+        //Rotating the x and z unit vectors to the frame of the ray
+        double nx = ray[3], ny = ray[4], nz = ray[5];
+        double c = 1 / (1 + ny);
+        ray[6] = (1 - nx * nx * c) * polParam[0];
+        ray[7] = -nx * polParam[0];
+        ray[8] = -nx * nz * c * polParam[0];
+        ray[15] = -nx * nz * c * polParam[1];
+        ray[16] = -nz * polParam[1];
+        ray[17] = (1 - nz * nz * c) * polParam[1];
         //Setting other columns
         ray[9] = 1.0;
-        ray[13] = pol[2];
-        ray[14] = pol[3];
-        partialFlux.add(sum * factor);
+        ray[13] = polParam[2];
+        ray[14] = polParam[3];
         return ray;
     }
 
+    /**
+     * Returning the proposal distribution for the ray generation for the
+     * current ranges. The proposal and its envelopes are rebuilt if the
+     * parameters have changed. The envelopes are estimated by a pilot sample
+     *
+     * @param ss parameters snapshot
+     * @return
+     */
+    private synchronized RayProposal getRayProposal(SourceSnapshot ss) {
+        if (rayProposal == null || !rayProposal.isFor(ss, rayXAnglerange, rayYAnglerange,
+                minEnergy, maxEnergy, iseSpread())) {
+            RayProposal proposal = new RayProposal(ss, rayXAnglerange, rayYAnglerange,
+                    minEnergy, maxEnergy, iseSpread());
+            SplittableRandom rnd = newRandom();
+            double[] ray = new double[NUMBER_OF_COLUMNS], v = new double[3],
+                    polParam = new double[NUMBER_OF_POL_PARAM];
+            double max = 0, maxPosition = 0;
+            for (int i = 0; i < RAY_PILOT_SIZE; i++) {
+                double q, r;
+                if (iseSpread()) {
+                    q = proposal.sample(rnd, ray, v);
+                    r = q == 0 ? 0 : rayDensity(ss, ray, v, polParam) / q;
+                } else {
+                    q = proposal.samplePosition(rnd, ray);
+                    r = ss.volumeFlux(ray[0], ray[2], ray[1]) / q;
+                    if (r > maxPosition) {
+                        maxPosition = r;
+                    }
+                    q = proposal.sampleDirection(rnd, ray, v);
+                    r = q == 0 ? 0 : raySpectralDensity(ss, ray, v, polParam) / q;
+                }
+                if (r > max) {
+                    max = r;
+                }
+            }
+            proposal.setEnvelope(RAY_ENVELOPE_MARGIN * max);
+            proposal.setPositionEnvelope(RAY_ENVELOPE_MARGIN * maxPosition);
+            proposal.setPositionIntegral(volumeFluxIntegral(ss, ss::transverseVolumeFlux));
+            rayProposal = proposal;
+        }
+        return rayProposal;
+    }
+
+    /**
+     * Returning the ray tables for the current ranges and resolution. The
+     * tables are built if the parameters have changed
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public RayTable getRayTable() throws InterruptedException {
+        RayTable table = rayTable;
+        if (table != null && table.isFor(snapshot, rayXAnglerange, rayYAnglerange,
+                minEnergy, maxEnergy, iseSpread(), rayTableResolution)) {
+            return table;
+        }
+        return buildRayTable();
+    }
+
+    /**
+     * Building the ray tables in parallel unless they have been built by
+     * another thread. The approximation error is estimated from a sample of
+     * rays
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    private synchronized RayTable buildRayTable() throws InterruptedException {
+        final SourceSnapshot ss = snapshot;
+        if (rayTable == null || !rayTable.isFor(ss, rayXAnglerange, rayYAnglerange,
+                minEnergy, maxEnergy, iseSpread(), rayTableResolution)) {
+            final RayTable table = new RayTable(ss, rayXAnglerange, rayYAnglerange,
+                    minEnergy, maxEnergy, iseSpread(), rayTableResolution);
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < rayTableResolution; i++) {
+                final int slice = i;
+                tasks.add(() -> {
+                    if (!cancelled.get()) {
+                        table.fillSlice(slice);
+                    }
+                    return null;
+                });
+            }
+            invokeTasks(tasks, cancelled);
+            table.build();
+            //Estimating the approximation error
+            final SplittableRandom random = newRandom();
+            List<Callable<double[]>> errorTasks = new ArrayList<>();
+            for (int m = 0; m < PARALLEL_CHUNKS; m++) {
+                final SplittableRandom rnd = random.split();
+                final int itNumber = RAY_PILOT_SIZE * (m + 1) / PARALLEL_CHUNKS - RAY_PILOT_SIZE * m / PARALLEL_CHUNKS;
+                errorTasks.add(() -> {
+                    double[] ratios = new double[itNumber];
+                    for (int i = 0; i < itNumber && !cancelled.get(); i++) {
+                        ratios[i] = table.ratio(rnd);
+                    }
+                    return ratios;
+                });
+            }
+            //Estimating the probability outside the position grid
+            List<Callable<double[]>> outsideTasks = new ArrayList<>();
+            for (int m = 0; m < PARALLEL_CHUNKS; m++) {
+                final SplittableRandom rnd = random.split();
+                final int itNumber = RAY_PILOT_SIZE * (m + 1) / PARALLEL_CHUNKS - RAY_PILOT_SIZE * m / PARALLEL_CHUNKS;
+                outsideTasks.add(() -> {
+                    double[] weights = new double[itNumber];
+                    for (int i = 0; i < itNumber && !cancelled.get(); i++) {
+                        weights[i] = table.positionWeight(rnd);
+                    }
+                    return weights;
+                });
+            }
+            table.setError(invokeTasks(errorTasks, cancelled), invokeTasks(outsideTasks, cancelled));
+            rayTable = table;
+        }
+        return rayTable;
+    }
+
+    /**
+     * The unnormalized density of rays in the phase space for a given position,
+     * direction, energy and electron velocity. Polarization parameters are
+     * written into the array if polarization is not pre-specified
+     *
+     * @param ss parameters snapshot
+     * @param ray ray parameters
+     * @param v normalized electron velocity
+     * @param polParam array for the polarization parameters
+     * @return
+     */
+    private double rayDensity(SourceSnapshot ss, double[] ray, double[] v, double[] polParam) {
+        return raySpectralDensity(ss, ray, v, polParam) * ss.volumeFlux(ray[0], ray[2], ray[1]);
+    }
+
+    /**
+     * The part of the ray density depending on the direction, energy and
+     * electron velocity
+     *
+     * @param ss parameters snapshot
+     * @param ray ray parameters
+     * @param v normalized electron velocity
+     * @param polParam array for the polarization parameters
+     * @return
+     */
+    private double raySpectralDensity(SourceSnapshot ss, double[] ray, double[] v, double[] polParam) {
+        double prob;
+        if (ksi == null) {
+            ss.directionFrequencyPolarizationNoSpread(ray[3], ray[5], ray[4], v[0], v[1], v[2], ray[10], polParam);
+            prob = polParam[0];
+        } else {
+            prob = ss.directionFrequencyFluxNoSpread(ray[3], ray[5], ray[4], v[0], v[1], v[2], ray[10]);
+        }
+        if (iseSpread()) {
+            prob *= ss.angleDistribution(v[0], v[1]);
+        }
+        return prob;
+    }
+
     /**
      * Setting ranges for the Shadow ray generation
      *
@@ -1003,23 +1823,43 @@ public class ThompsonSource implements Cloneable {
     }
 
     /**
-     * Returning the matrix of 3D rotation based on two unity vectors
+     * Number of cells along each dimension of the ray tables
+     *
+     * @return the resolution, zero if rays are generated by rejection sampling
+     */
+    public int getRayTableResolution() {
+        return rayTableResolution;
+    }
+
+    /**
+     * Setting the number of cells along each dimension of the ray tables
+     *
+     * @param resolution the resolution, zero for rejection sampling
+     */
+    public void setRayTableResolution(int resolution) {
+        this.rayTableResolution = resolution;
+    }
+
+    /**
+     * Approximation error of the last built ray tables
+     *
+     * @return the total variation distance between the tabulated and exact
+     * ray densities, zero if no tables have been built
+     */
+    public double getRayTableError() {
+        RayTable table = rayTable;
+        return table == null ? 0 : table.getError();
+    }
+
+    /**
+     * Probability of positions outside the position grid of the last built
+     * ray tables. Such positions are never drawn
      *
-     * @param n
-     * @param n0
-     * @return transformation matrix
+     * @return the probability, zero if no tables have been built
      */
-    protected Matrix getTransform(Vector n, Vector n0) {
-        Matrix D, A, I = new Basic1DMatrix(3, 3);
-        I.set(0, 0, 1.0);
-        I.set(1, 1, 1.0);
-        I.set(2, 2, 1.0);
-        double innerProduct;
-        innerProduct = n.innerProduct(n0);
-        D = n.outerProduct(n0).add(n0.outerProduct(n)).multiply(innerProduct).subtract(n.outerProduct(n)
-                .add(n0.outerProduct(n0))).divide(innerProduct * innerProduct - 1.0);
-        A = n.outerProduct(n0).subtract(n0.outerProduct(n)).add(I.multiply(innerProduct));
-        return I.subtract(D).multiply(1 - innerProduct).add(A);
+    public double getRayTableOutside() {
+        RayTable table = rayTable;
+        return table == null ? 0 : table.getOutside();
     }
 
     /**
@@ -1049,6 +1889,43 @@ public class ThompsonSource implements Cloneable {
         this.npGeometricFactor = npGeometricFactor;
     }
 
+    /**
+     * Method of the geometric factor calculation
+     *
+     * @return
+     */
+    public GeometricFactorMethod getGeometricFactorMethod() {
+        return gfMethod;
+    }
+
+    /**
+     * Method of the geometric factor calculation
+     *
+     * @param method
+     */
+    public void setGeometricFactorMethod(GeometricFactorMethod method) {
+        this.gfMethod = method;
+    }
+
+    /**
+     * Target relative error of the quasi-Monte Carlo geometric factor
+     *
+     * @return
+     */
+    public double getGeometricFactorTargetError() {
+        return gfTargetError;
+    }
+
+    /**
+     * Target relative error of the quasi-Monte Carlo geometric factor. If zero
+     * all npGeometricFactor points are used
+     *
+     * @param error
+     */
+    public void setGeometricFactorTargetError(double error) {
+        this.gfTargetError = error;
+    }
+
     /**
      * Precision in calculations of the brilliance
      *
@@ -1085,6 +1962,25 @@ public class ThompsonSource implements Cloneable {
         return geometricFactor;
     }
 
+    /**
+     * Statistical standard error of the last calculated geometric factor
+     *
+     * @return
+     */
+    public double getGeometricFactorError() {
+        return geometricFactorError;
+    }
+
+    /**
+     * Ratio of the variances of uniform and importance sampling achieved in
+     * the last importance sampling calculation of the geometric factor
+     *
+     * @return
+     */
+    public double getGeometricFactorVarianceReduction() {
+        return gfVarianceReduction;
+    }
+
     /**
      * Approximate geometric factor calculated neglecting the "hourglass"
      * effect. It assumes values from 0 to 1.
@@ -1120,12 +2016,14 @@ public class ThompsonSource implements Cloneable {
     }
 
     /**
-     * Flux in the phase space volume of ray generation
+     * Flux in the phase space volume of ray generation estimated from the
+     * generated rays
      *
      * @return the partialFlux
      */
     public double getPartialFlux() {
-        return partialFlux.sum();
+        int n = fluxSamples.get();
+        return n == 0 ? 0 : partialFlux.sum() / n;
     }
 
     /**
@@ -1137,6 +2035,16 @@ public class ThompsonSource implements Cloneable {
         return counter.get();
     }
 
+    /**
+     * Fraction of ray iterations resulting in generated rays
+     *
+     * @return the acceptance rate
+     */
+    public double getAcceptanceRate() {
+        int cn = counter.get();
+        return cn == 0 ? 0 : (double) rays.get() / cn;
+    }
+
     /**
      * Setting the number of used threads
      *
@@ -1156,37 +2064,169 @@ public class ThompsonSource implements Cloneable {
     }
 
     /**
-     * Calculation of random amplitudes and phases for an arbitrary state of
-     * polarization
+     * Setting the seed of random streams. If null the random streams are not
+     * reproducible
+     *
+     * @param seed
+     */
+    public void setSeed(Long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Getting the seed of random streams
+     *
+     * @return
+     */
+    public Long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Setting the cache of the spread-convolved spectra
+     *
+     * @param cache the cache or null to disable caching
+     */
+    public void setSpectrumCache(SpectrumCache cache) {
+        this.spectrumCache = cache;
+    }
+
+    /**
+     * Returning the cache of the spread-convolved spectra
+     *
+     * @return the cache or null if caching is disabled
+     */
+    public SpectrumCache getSpectrumCache() {
+        return spectrumCache;
+    }
+
+    /**
+     * Setting the work-stealing pool for parallel calculations. The maps are
+     * split into fork/join tiles, so a ForkJoinPool is required. If null the
+     * shared pool is used. The pool is not shut down by ThompsonSource
+     *
+     * @param executor
+     */
+    public void setExecutor(ForkJoinPool executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Getting the executor for parallel calculations
+     *
+     * @return
+     */
+    public ForkJoinPool getExecutor() {
+        return executor == null ? getSharedExecutor() : executor;
+    }
+
+    /**
+     * Returning the work-stealing pool shared by all sources. It is created on
+     * the first call and has getSharedParallelism() daemon workers
+     *
+     * @return
+     */
+    public static synchronized ForkJoinPool getSharedExecutor() {
+        if (sharedExecutor == null || sharedExecutor.isShutdown()) {
+            sharedExecutor = new ForkJoinPool(sharedParallelism);
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Setting the number of workers in the shared and background pools. The
+     * pools are replaced on the next request. The old ones are not shut down,
+     * so the running calculations finish and their idle workers terminate
+     *
+     * @param parallelism
+     */
+    public static synchronized void setSharedParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        if (parallelism != sharedParallelism) {
+            sharedParallelism = parallelism;
+            sharedExecutor = null;
+            backgroundExecutor = null;
+        }
+    }
+
+    /**
+     * Getting the number of workers in the shared and background pools. By
+     * default it is the number of processors
+     *
+     * @return
+     */
+    public static synchronized int getSharedParallelism() {
+        return sharedParallelism;
+    }
+
+    /**
+     * Shutting down the shared pool. A new one is created on the next request
+     */
+    public static synchronized void shutdownSharedExecutor() {
+        if (sharedExecutor != null) {
+            sharedExecutor.shutdownNow();
+            sharedExecutor = null;
+        }
+    }
+
+    /**
+     * Returning the work-stealing pool for background calculations. Its
+     * daemon workers have the minimal priority, so the shared pool takes
+     * precedence
      *
      * @return
      */
-    private double[] getPolarization(double[] ksiVector) {
-        double[] pol = new double[4];
-        Complex phase1 = Complex.I.multiply(Math.random() * 2 * Math.PI).exp();
-        Complex phase2 = Complex.I.multiply(Math.random() * 2 * Math.PI).exp();
-        double p = Math.sqrt(ksiVector[0] * ksiVector[0] + ksiVector[1] * ksiVector[1] + ksiVector[2] * ksiVector[2]);
+    public static synchronized ForkJoinPool getBackgroundExecutor() {
+        if (backgroundExecutor == null || backgroundExecutor.isShutdown()) {
+            backgroundExecutor = new ForkJoinPool(sharedParallelism, pool -> {
+                ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                worker.setPriority(Thread.MIN_PRIORITY);
+                return worker;
+            }, null, false);
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * Calculation of random amplitudes and phases for an arbitrary state of
+     * polarization. The Jones vector is built in real arithmetic
+     *
+     * @param ksi1 the first Stocks parameter
+     * @param ksi2 the second Stocks parameter
+     * @param ksi3 the third Stocks parameter
+     * @param rnd random stream
+     * @param pol array for the two amplitudes and two phases
+     */
+    private static void getPolarization(double ksi1, double ksi2, double ksi3, SplittableRandom rnd, double[] pol) {
+        double phase1 = rnd.nextDouble() * 2 * Math.PI;
+        double phase2 = rnd.nextDouble() * 2 * Math.PI;
+        double p = Math.sqrt(ksi1 * ksi1 + ksi2 * ksi2 + ksi3 * ksi3);
         //If p > 1 reducing it yo 1
         p = p > 1 ? 1 : p;
         //Special case when the denomonator is zero
-        if (ksiVector[0] == -p) {
-            pol[0] = Math.sqrt((1 - ksiVector[0]) / 2);
-            pol[1] = Math.sqrt((1 + ksiVector[0]) / 2);
-            pol[2] = Math.random() * 2 * Math.PI;
-            pol[3] = Math.random() * 2 * Math.PI;
+        if (ksi1 == -p) {
+            pol[0] = Math.sqrt((1 - ksi1) / 2);
+            pol[1] = Math.sqrt((1 + ksi1) / 2);
+            pol[2] = rnd.nextDouble() * 2 * Math.PI;
+            pol[3] = rnd.nextDouble() * 2 * Math.PI;
         } else {
             //General case
+            double c1 = Math.cos(phase1), s1 = Math.sin(phase1);
+            double c2 = Math.cos(phase2), s2 = Math.sin(phase2);
             double k1 = Math.sqrt(1 - p);
             double k2 = Math.sqrt(1 + p);
-            double coef = Math.sqrt((p + ksiVector[0]) / p) / 2;
-            Complex ksiD = new Complex(ksiVector[1], ksiVector[2]);
-            Complex e1 = phase1.multiply(k1).add(phase2.multiply(ksiD).multiply(k2).divide(p + ksiVector[0])).multiply(coef);
-            Complex e2 = phase2.multiply(k2).subtract(phase1.multiply(ksiD.conjugate()).multiply(k1).divide(p + ksiVector[0])).multiply(coef);
-            pol[0] = e1.abs();
-            pol[1] = e2.abs();
-            pol[2] = e1.getArgument();
-            pol[3] = e2.getArgument();
+            double coef = Math.sqrt((p + ksi1) / p) / 2;
+            double d1 = k1 / (p + ksi1), d2 = k2 / (p + ksi1);
+            double e1r = coef * (k1 * c1 + d2 * (c2 * ksi2 - s2 * ksi3));
+            double e1i = coef * (k1 * s1 + d2 * (c2 * ksi3 + s2 * ksi2));
+            double e2r = coef * (k2 * c2 - d1 * (c1 * ksi2 + s1 * ksi3));
+            double e2i = coef * (k2 * s2 - d1 * (s1 * ksi2 - c1 * ksi3));
+            pol[0] = Math.hypot(e1r, e1i);
+            pol[1] = Math.hypot(e2r, e2i);
+            pol[2] = Math.atan2(e1i, e1r);
+            pol[3] = Math.atan2(e2i, e2r);
         }
-        return pol;
     }
 }
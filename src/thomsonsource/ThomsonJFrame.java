@@ -38,14 +38,18 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.jar.Manifest;
 import java.util.Properties;
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
@@ -65,7 +69,8 @@ import org.la4j.vector.dense.*;
 
 import static TextUtilities.MyTextUtilities.*;
 import java.net.URL;
-import java.util.function.Function;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoubleSupplier;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import shadowfileconverter.ShadowFiles;
 
@@ -97,7 +102,10 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         this.rayYAngleRangeBox = getDoubleFormattedTextField(0.3, 0.0, 100.0, false);
         this.gfMonteCarloNumberBox = getIntegerFormattedTextField(50000, 1, 100000000);
         this.numericallPrecisionBox = getDoubleFormattedTextField(1e-4, 1e-10, 1e-1, true);
-        this.shiftFactorBox = getDoubleFormattedTextField(1.0, 1e-20, 1e10, true);
+        this.gfTargetErrorBox = getDoubleFormattedTextField(1e-3, 1e-6, 1e-1, true);
+        this.seedBox = getIntegerFormattedTextField(0, 0, Integer.MAX_VALUE);
+        this.precomputeBox = new JCheckBox("", true);
+        this.gfMethodBox = new JComboBox<>(ThompsonSource.GeometricFactorMethod.values());
         this.xSizeBox = getIntegerFormattedTextField(300, 1, 10000);
         this.ySizeBox = getIntegerFormattedTextField(200, 1, 10000);
         this.xRangeBox = getDoubleFormattedTextField(20.0, 0.0, 100.0, false);
@@ -105,6 +113,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         this.xEnergyRangeBox = getDoubleFormattedTextField(2000.0, 0.0, 20000.0, false);
         this.rayMinEnergyBox = getDoubleFormattedTextField(25.0, 0.0, 100.0, false);
         this.rayEnergyRangeBox = getDoubleFormattedTextField(10.0, 0.0, 100.0, false);
+        this.rayTableResolutionBox = getIntegerFormattedTextField(0, 0, 128);
         this.threadsNumberBox = getIntegerFormattedTextField(2, 1, 100);
         this.ksi1Box = getDoubleFormattedTextField(0.0, -1.0, 1.0, false);
         this.ksi2Box = getDoubleFormattedTextField(0.0, -1.0, 1.0, false);
@@ -122,22 +131,24 @@ public class ThomsonJFrame extends javax.swing.JFrame {
                 n = n.divide(n.fold(Vectors.mkEuclideanNormAccumulator()));
                 return 1e-6 * tsource.directionFlux(n, v) / 1e10;
             }
+
+            @Override
+            public void func(double thetax, double[] thetay, double[] u) {
+                int size = thetay.length;
+                double[] nx = new double[size], ny = new double[size], nz = new double[size];
+                directionArrays(thetax, thetay, nx, ny, nz);
+                tsource.directionFlux(nx, ny, nz, 0.0, 0.0, 1.0, u, size);
+                for (int p = 0; p < size; p++) {
+                    u[p] *= 1e-6 / 1e10;
+                }
+            }
         };
         /**
          * An auxiliary method calculating the flux density in a given direction
          * for a given X-ray photon energy
          *
          */
-        this.fluxcrossdata = new ChartParam() {
-            @Override
-            public double func(double e, double theta) {
-                Vector n, v;
-                v = new BasicVector(new double[]{0.0, 0.0, 1.0});
-                n = new BasicVector(new double[]{hoffset * 1e-3, theta * 1e-3, 1.0});
-                n = n.divide(n.fold(Vectors.mkEuclideanNormAccumulator()));
-                return 1e-9 * tsource.getGeometricFactor() * tsource.directionFrequencyFlux(n, v, e * ElectronBunch.E) / 1e10;
-            }
-        };
+        this.fluxcrossdata = createCrossData(() -> hoffset);
 
         /**
          * An auxiliary method calculating X-ray energy in a given direction
@@ -152,12 +163,33 @@ public class ThomsonJFrame extends javax.swing.JFrame {
                 n = n.divide(n.fold(Vectors.mkEuclideanNormAccumulator()));
                 return tsource.directionEnergy(n, v) / ElectronBunch.E * 1e-3;
             }
+
+            @Override
+            public void func(double thetax, double[] thetay, double[] u) {
+                int size = thetay.length;
+                double[] nx = new double[size], ny = new double[size], nz = new double[size];
+                directionArrays(thetax, thetay, nx, ny, nz);
+                tsource.directionEnergy(nx, ny, nz, 0.0, 0.0, 1.0, u, size);
+                for (int p = 0; p < size; p++) {
+                    u[p] *= 1e-3 / ElectronBunch.E;
+                }
+            }
         };
         /**
          * Auxiliary object for linear energy chart parameters
          */
         this.xenergycrossdata = new LinearChartParam();
 
+        /**
+         * Showing coarse levels of the maps while they are being calculated
+         */
+        this.fluxdata.setLevels(PREVIEW_LEVELS);
+        this.fluxdata.setPreviewListener(st -> SwingUtilities.invokeLater(this::showFluxChart));
+        this.xenergydata.setLevels(PREVIEW_LEVELS);
+        this.xenergydata.setPreviewListener(st -> SwingUtilities.invokeLater(this::showXEnergyChart));
+        this.fluxcrossdata.setLevels(PREVIEW_LEVELS);
+        this.fluxcrossdata.setPreviewListener(st -> SwingUtilities.invokeLater(this::showFluxCrossChart));
+
         /**
          * Objects for the brilliance calculation
          */
@@ -2159,6 +2191,20 @@ public class ThomsonJFrame extends javax.swing.JFrame {
             worker.cancel(true);
         }
 
+        /**
+         * Calculating the curves by a parallel sweep over the selected
+         * parameter between the minimal and maximal values
+         *
+         * @param f function calculating the curves on a clone of the source
+         * @param curves number of curves
+         * @param progress receiver of the fraction of calculated points
+         * @throws InterruptedException
+         */
+        public void sweep(LinearChartParam.SweepFunction f, int curves, DoubleConsumer progress) throws InterruptedException {
+            double step = (maxValueClone - minValueClone) / (xsize - 1);
+            chartParam.setup(tsourceclone, f, curves, xsize, step, minValueClone, progress);
+        }
+
         /**
          * Returning the array with graph keys
          */
@@ -2188,7 +2234,11 @@ public class ThomsonJFrame extends javax.swing.JFrame {
          * @param fraction
          */
         ColorChart(ChartParam data, String xlabel, String ylabel, String colorBarlabel, JPanel jPanel, double fraction, boolean slider) {
-            this.chart = createChart(createDataset(data, slider), data, xlabel, ylabel);
+            this.chart = createChart(createDataset(data), data, xlabel, ylabel);
+            if (slider) {
+                //Marking the column of the slider position
+                ((HeatMapRenderer) chart.getXYPlot().getRenderer()).setMark(columns -> (columns - 1) * sliderposition / 100);
+            }
             this.chartpanel = new ChartPanel(chart,
                     (int) (fraction * jPanel.getWidth()), (int) jPanel.getHeight(), 0, 0,
                     (int) (10 * jPanel.getWidth()), (int) (10 * jPanel.getHeight()),
@@ -2214,14 +2264,11 @@ public class ThomsonJFrame extends javax.swing.JFrame {
             chart.getXYPlot().getDomainAxis().setRangeAboutValue(data.getxoffset(), data.getxsize() * data.getxstep());
             chart.getXYPlot().getRangeAxis().setRangeAboutValue(data.getyoffset(), data.getysize() * data.getystep());
             PaintScale scale = new JetPaintScale(0, data.getumax());
-            XYBlockRenderer renderer = ((XYBlockRenderer) chart.getXYPlot().getRenderer());
-            renderer.setBlockHeight(data.getystep());
-            renderer.setBlockWidth(data.getxstep());
-            renderer.setPaintScale(scale);
+            ((HeatMapRenderer) chart.getXYPlot().getRenderer()).setData(data, scale);
             chart.fireChartChanged();
 
             colorbarchart.getXYPlot().getRangeAxis().setRange(0.0, data.getumax());
-            renderer = ((XYBlockRenderer) colorbarchart.getXYPlot().getRenderer());
+            XYBlockRenderer renderer = ((XYBlockRenderer) colorbarchart.getXYPlot().getRenderer());
             renderer.setPaintScale(scale);
             renderer.setBlockHeight(data.getumax() / (data.getxsize() - 1));
             colorbarchart.fireChartChanged();
@@ -2257,6 +2304,29 @@ public class ThomsonJFrame extends javax.swing.JFrame {
     private int numberOfRays = 1000;
     /* Number of rays exported for Shadow */
 
+    private static final int RAY_CHUNK = 256;
+    /* Number of rays generated from one random stream */
+
+    private static final int PREVIEW_LEVELS = 3;
+    /* Number of coarse levels of the maps shown before the full resolution */
+
+    private static final double ADAPTIVE_TOLERANCE = 3e-3;
+    /* Relative tolerance of the adaptive evaluation of the flux cross-section */
+
+    private static final long CROSS_CACHE_POINTS = 1 << 23;
+    /* Maximal total number of points of the cached flux cross-sections */
+
+    private final ChartCache crossCache = new ChartCache(CROSS_CACHE_POINTS);
+    /* Flux cross-sections for the visited and precalculated slider positions */
+
+    private boolean precomputeCrossSections = true;
+    /* Whether the flux cross-sections for all slider positions are calculated in background */
+
+    private volatile FrequencyFluxTable crossTable = null;
+    private List<Object> crossTableKey = null;
+    private final Object crossTableLock = new Object();
+    /* Flux density without spread for all slider positions and its parameters */
+
     private final ChartParam fluxdata, fluxcrossdata, xenergydata;
     private final LinearChartParam xenergycrossdata;
     private JFreeChart xenergycrosschart = null;
@@ -2267,11 +2337,14 @@ public class ThomsonJFrame extends javax.swing.JFrame {
     private final CalcBoxParam brilForm, gfForm, polForm;
     private ColorChart fluxChart, fluxCrossChart, xEnergyChart;
     private boolean working = false, rayWorking = false;
-    private SwingWorker<Void, Void> mainWorker, rayWorker;
+    private SwingWorker<Void, Void> mainWorker, rayWorker, precomputeWorker;
     private Map<JTextField, String> oldStrings;
     JFormattedTextField rayNumberBox, rayXAngleRangeBox, rayYAngleRangeBox, rayMinEnergyBox, rayEnergyRangeBox,
-            gfMonteCarloNumberBox, numericallPrecisionBox, shiftFactorBox, xSizeBox, ySizeBox, xRangeBox,
-            yRangeBox, xEnergyRangeBox, threadsNumberBox, ksi1Box, ksi2Box, ksi3Box;
+            gfMonteCarloNumberBox, numericallPrecisionBox, xSizeBox, ySizeBox, xRangeBox,
+            yRangeBox, xEnergyRangeBox, threadsNumberBox, ksi1Box, ksi2Box, ksi3Box, gfTargetErrorBox, seedBox,
+            rayTableResolutionBox;
+    JComboBox<ThompsonSource.GeometricFactorMethod> gfMethodBox;
+    JCheckBox precomputeBox;
 
     private File bFile = null, pFile = null;
 
@@ -2351,6 +2424,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
             mainWorker.cancel(true);
             return;
         }
+        stopPrecomputation();
         MainProgressBar.setValue(0);
         MainProgressBar.setStringPainted(true);
         jSlider_pickup.setEnabled(false);
@@ -2362,12 +2436,46 @@ public class ThomsonJFrame extends javax.swing.JFrame {
             protected Void doInBackground() throws Exception {
                 try {
                     tsource.calculateTotalFlux();
-                    tsource.calculateGeometricFactor();
-                    fluxdata.setup(xsize, ysize, xstep, ystep, 0, 0);
-                    setStatusBar((int) 100 / 4);
-                    xenergydata.setup(xsize, ysize, xstep, ystep, 0, 0);
-                    setStatusBar((int) 100 * 2 / 4);
-                    fluxcrossdata.setup(xsize, ysize, estep, ystep, xenergydata.func(hoffset, 0.0) * 1e3, 0.0);
+                    tsource.updateGeometricFactor();
+                    //Skipping the mirrored halves of symmetric maps
+                    boolean[] sym = tsource.getDirectionSymmetry(0.0, 0.0);
+                    fluxdata.setSymmetry(sym[0], sym[1]);
+                    xenergydata.setSymmetry(sym[0], sym[1]);
+                    fluxcrossdata.setSymmetry(false, sym[1]);
+                    //Spread-mode cross-sections are refined adaptively
+                    fluxcrossdata.setTolerance(tsource.iseSpread() ? ADAPTIVE_TOLERANCE : 0);
+                    //Angular maps are interpolated from radial profiles
+                    fluxdata.setRadial(tsource.isDirectionRadial(0.0, 0.0));
+                    xenergydata.setRadial(tsource.isDirectionRadial(0.0, 0.0));
+                    /*
+                     * Only the maps whose parameters have changed are recalculated,
+                     * the flux maps of the others are rescaled. The recalculated maps
+                     * are independent and are calculated concurrently
+                     */
+                    double scale = tsource.getTotalFlux() * tsource.getGeometricFactor();
+                    List<Object> fluxKey = fluxKey(), energyKey = energyKey(), crossKey = crossKey();
+                    if (!fluxcrossdata.isFor(crossKey)) {
+                        updateCrossTable();
+                    }
+                    ForkJoinPool execs = tsource.getExecutor();
+                    List<Future<?>> futures = new ArrayList<>();
+                    if (fluxdata.isFor(fluxKey)) {
+                        fluxdata.rescale(scale);
+                    } else {
+                        futures.add(fluxdata.submit(execs, xsize, ysize, xstep, ystep, 0, 0));
+                    }
+                    if (!xenergydata.isFor(energyKey)) {
+                        futures.add(xenergydata.submit(execs, xsize, ysize, xstep, ystep, 0, 0));
+                    }
+                    if (fluxcrossdata.isFor(crossKey)) {
+                        fluxcrossdata.rescale(scale);
+                    } else {
+                        futures.add(fluxcrossdata.submit(execs, xsize, ysize, estep, ystep, xenergydata.func(hoffset, 0.0) * 1e3, 0.0));
+                    }
+                    ChartParam.await(futures.toArray(new Future<?>[futures.size()]));
+                    fluxdata.setKey(fluxKey, scale);
+                    xenergydata.setKey(energyKey, 1);
+                    fluxcrossdata.setKey(crossKey, scale);
                     setStatusBar((int) 100 * 3 / 4);
                     xenergycrossdata.setup(xenergydata.getudata(),
                             (int) (xenergydata.getxsize() - 1) * sliderposition / 100,
@@ -2392,29 +2500,15 @@ public class ThomsonJFrame extends javax.swing.JFrame {
                 }
                 if (!isCancelled() || fluxChart != null) {
                     //Creating or updating charts
-                    if (fluxChart != null) {
-                        fluxChart.fullupdate(fluxdata);
-                    } else {
-                        fluxChart = new ColorChart(fluxdata, "theta_x, mrad", "theta_y, mrad", "mrad\u207B\u00B2\u00B7s\u207B\u00B9\u00B710\u00B9\u2070",
-                                jPanel_xflux_left, 0.75, true);
-                    }
-                    if (fluxCrossChart != null) {
-                        fluxCrossChart.fullupdate(fluxcrossdata);
-                    } else {
-                        fluxCrossChart = new ColorChart(fluxcrossdata, "X-ray energy, eV", "theta_y, mrad",
-                                "mrad\u207B\u00B2\u00B7s\u207B\u00B9\u00B70.1%\u00B710\u00B9\u2070", jPanel_xflux_right, 0.75, false);
-                    }
-                    if (xEnergyChart != null) {
-                        xEnergyChart.fullupdate(xenergydata);
-                    } else {
-                        xEnergyChart = new ColorChart(xenergydata, "theta_x, mrad", "theta_y, mrad", "kev", jPanel_xenergy_left, 0.75, true);
-                    }
+                    showFluxChart();
+                    showFluxCrossChart();
+                    showXEnergyChart();
                     if (xenergycrosschart != null) {
                         xenergycrosschart.getXYPlot().getRangeAxis().setRange(xenergycrossdata.getUMin(), xenergycrossdata.getUMax());
                         xenergycrosschart.getXYPlot().getDomainAxis().setRangeAboutValue(xenergycrossdata.getOffset()
                                 + xenergycrossdata.getSize() * xenergycrossdata.getStep() / 2, xenergycrossdata.getSize() * xenergycrossdata.getStep());
                         xenergycrosschart.fireChartChanged();
-                    } else {
+                    } else if (xenergycrossdata.getData() != null) {
                         xenergycrosschart = createLineChart(createLineDataset(xenergycrossdata, new String[]{"Energy cross section"}), "theta_y, mrad", "Energy, keV");
                         ChartPanel chartpanel = new ChartPanel(xenergycrosschart,
                                 (int) (jPanel_xenergy_right.getWidth()), (int) jPanel_xenergy_right.getHeight(), 0, 0,
@@ -2432,6 +2526,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
                     xrayenergyborder.setTitle("X-ray photon energy" + ". Max: " + (new DecimalFormat("########.##")).format(xenergydata.getumax()) + " keV");
                     totalFluxLabel.setText("Total flux: "
                             + (new DecimalFormat("##.#######")).format(tsource.getTotalFlux() * tsource.getGeometricFactor() * 1e-15)
+                            + "\u00B1" + (new DecimalFormat("##.#######")).format(tsource.getTotalFlux() * tsource.getGeometricFactorError() * 1e-15)
                             + "\u00B710\u00B9\u2075\u00B7ph\u00B7s\u207B\u00B9");
                     totalFluxAngleLabel.setText("Within angle: "
                             + (new DecimalFormat("##.#######"))
@@ -2439,6 +2534,10 @@ public class ThomsonJFrame extends javax.swing.JFrame {
                                             ysize * ystep) * 1e-3 / 2) * 1e-15)
                             + "\u00B710\u00B9\u2075\u00B7ph\u00B7s\u207B\u00B9");
                 }
+                if (!isCancelled()) {
+                    cacheCrossData();
+                    startPrecomputation();
+                }
                 startbutton.setText("Start");
                 jSlider_pickup.setEnabled(true);
                 if (plotwidth != 0) {
@@ -2487,18 +2586,38 @@ public class ThomsonJFrame extends javax.swing.JFrame {
             if (working) {
                 return;
             }
+            sliderposition = (int) source.getValue();
+            hoffset = xsize * xstep * (sliderposition - 50) / 100;
+            //Taking precalculated cross-sections from the cache
+            ChartParam cached = crossCache.get(crossKey());
+            if (cached != null && xenergydata.getudata() != null) {
+                fluxcrossdata.copy(cached);
+                fluxcrossdata.rescale(tsource.getTotalFlux() * tsource.getGeometricFactor());
+                try {
+                    xenergycrossdata.setup(xenergydata.getudata(), (int) (xenergydata.getxsize() - 1) * sliderposition / 100,
+                            false, ysize, ystep, -ystep * ysize / 2);
+                } catch (InterruptedException e) {
+
+                }
+                updateCrossCharts();
+                return;
+            }
+            //Other positions are calculated at once, the background calculation is paused
+            stopPrecomputation();
             MainProgressBar.setValue(0);
             MainProgressBar.setStringPainted(true);
             startbutton.setText("Stop");
             working = true;
 
-            sliderposition = (int) source.getValue();
-            hoffset = xsize * xstep * (sliderposition - 50) / 100;
             mainWorker = new SwingWorker<Void, Void>() {
                 @Override
                 protected Void doInBackground() throws Exception {
                     try {
-                        fluxcrossdata.setup(xsize, ysize, estep, ystep, xenergydata.func(hoffset, 0.0) * 1e3, 0.0);
+                        fluxcrossdata.setTolerance(tsource.iseSpread() ? ADAPTIVE_TOLERANCE : 0);
+                        updateCrossTable();
+                        fluxcrossdata.setup(tsource.getExecutor(), xsize, ysize, estep, ystep,
+                                xenergydata.func(hoffset, 0.0) * 1e3, 0.0);
+                        fluxcrossdata.setKey(crossKey(), tsource.getTotalFlux() * tsource.getGeometricFactor());
                         setStatusBar((int) 100);
                         xenergycrossdata.setup(xenergydata.getudata(), (int) (xenergydata.getxsize() - 1) * sliderposition / 100,
                                 false, ysize, ystep, -ystep * ysize / 2);
@@ -2518,19 +2637,10 @@ public class ThomsonJFrame extends javax.swing.JFrame {
                     } catch (InterruptedException | CancellationException ex) {
 
                     }
-                    if (fluxChart != null) {
-                        fluxChart.update();
-                    }
-                    //Updating charts
-                    if (fluxCrossChart != null) {
-                        fluxCrossChart.fullupdate(fluxcrossdata);
-                    }
-                    if (xEnergyChart != null) {
-                        xEnergyChart.update();
-                    }
-                    if (xenergycrosschart != null) {
-                        xenergycrosschart.getXYPlot().getRangeAxis().setRange(xenergycrossdata.getUMin(), xenergycrossdata.getUMax());
-                        xenergycrosschart.fireChartChanged();
+                    updateCrossCharts();
+                    if (!isCancelled()) {
+                        cacheCrossData();
+                        startPrecomputation();
                     }
                     startbutton.setText("Start");
                     working = false;
@@ -2649,168 +2759,61 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         brilForm.worker = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                double step = (brilForm.maxValueClone - brilForm.minValueClone) / (xsize - 1);
-                double offset = brilForm.minValueClone;
-                List<Function<Double, Double>> func = new ArrayList<>();
-                switch (brilForm.selectedItemIndexClone) {
-                    case 0:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getLaserPulse().getDirection().set(2, Math.cos(x));
-                            brilForm.tsourceclone.getLaserPulse().getDirection().set(1, Math.sin(x));
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 1:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getLaserPulse().setDelay(x);
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 2:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getElectronBunch().getShift().set(2, x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 3:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getElectronBunch().setBetax(x);
-                            brilForm.tsourceclone.getElectronBunch().setBetay(x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 4:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getElectronBunch().setEpsx(x);
-                            brilForm.tsourceclone.getElectronBunch().setEpsy(x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 5:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getElectronBunch().setEpsx(x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 6:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getElectronBunch().setEpsy(x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 7:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getLaserPulse().setRlength(x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 8:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getLaserPulse().setWidth(x);
-                            brilForm.tsourceclone.getElectronBunch().setxWidth(x);
-                            brilForm.tsourceclone.getElectronBunch().setyWidth(x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 9:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            double x = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.getElectronBunch().setDelgamma(x);
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 10:
-                        func.add(xp -> {
-                            double ang = brilForm.angleclone * 1e-3;
-                            double e = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0.0, 0.0, 0.0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0.0, 0.0, 1.0}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                    case 11:
-                        func.add(xp -> {
-                            double ang = xp * brilForm.conversionValues[brilForm.selectedItemIndexClone];
-                            double e = brilForm.energyclone * ElectronBunch.E * 1e3;
-                            brilForm.tsourceclone.calculateTotalFlux();
-                            setStatusBar((xp - offset) / step / (xsize - 1));
-                            return brilForm.tsourceclone.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
-                                    new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
-                                    e) * 1e-15 * 1e-13;
-                        });
-                        break;
-                }
-                brilForm.chartParam.setup(func, xsize, step, offset);
+                final int index = brilForm.selectedItemIndexClone;
+                final double conv = brilForm.conversionValues[index];
+                //Each point is calculated on a private clone of the source
+                brilForm.sweep((ts, xp) -> {
+                    double ang = brilForm.angleclone * 1e-3;
+                    double e = brilForm.energyclone * ElectronBunch.E * 1e3;
+                    double x = xp * conv;
+                    switch (index) {
+                        case 0:
+                            ts.getLaserPulse().getDirection().set(2, Math.cos(x));
+                            ts.getLaserPulse().getDirection().set(1, Math.sin(x));
+                            break;
+                        case 1:
+                            ts.getLaserPulse().setDelay(x);
+                            break;
+                        case 2:
+                            ts.getElectronBunch().getShift().set(2, x);
+                            break;
+                        case 3:
+                            ts.getElectronBunch().setBetax(x);
+                            ts.getElectronBunch().setBetay(x);
+                            break;
+                        case 4:
+                            ts.getElectronBunch().setEpsx(x);
+                            ts.getElectronBunch().setEpsy(x);
+                            break;
+                        case 5:
+                            ts.getElectronBunch().setEpsx(x);
+                            break;
+                        case 6:
+                            ts.getElectronBunch().setEpsy(x);
+                            break;
+                        case 7:
+                            ts.getLaserPulse().setRlength(x);
+                            break;
+                        case 8:
+                            ts.getLaserPulse().setWidth(x);
+                            ts.getElectronBunch().setxWidth(x);
+                            ts.getElectronBunch().setyWidth(x);
+                            break;
+                        case 9:
+                            ts.getElectronBunch().setDelgamma(x);
+                            break;
+                        case 10:
+                            e = x;
+                            break;
+                        case 11:
+                            ang = x;
+                            break;
+                    }
+                    ts.calculateTotalFlux();
+                    return new double[]{ts.directionFrequencyBrilliance(new BasicVector(new double[]{0, 0, 0}),
+                        new BasicVector(new double[]{Math.sin(ang), 0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}),
+                        e) * 1e-15 * 1e-13};
+                }, 1, this::setStatusBar);
                 return null;
             }
 
@@ -3021,59 +3024,70 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         } catch (CloneNotSupportedException ex) {
 
         }
-        final int rayNumber = tsourceRayClone.getThreadNumber() * (numberOfRays / tsourceRayClone.getThreadNumber());
+        final int rayNumber = numberOfRays;
         tsourceRayClone.calculateTotalFlux();
         rayWorking = true;
         rayWorker = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                // Creating a pool of threads, a lock, an atomic interger and a latch
-                ExecutorService excs = Executors.newFixedThreadPool(tsource.getThreadNumber());
-                CountDownLatch lt = new CountDownLatch(tsource.getThreadNumber());
-                AtomicInteger counter = new AtomicInteger();
+                // Using the shared pool of threads and a cancellation flag
+                ExecutorService excs = tsourceRayClone.getExecutor();
+                Deque<Future<double[][]>> futures = new ArrayDeque<>();
+                Deque<ThompsonSource.RayStream> streams = new ArrayDeque<>();
+                AtomicBoolean cancelled = new AtomicBoolean();
+                SplittableRandom random = tsourceRayClone.newRandom();
+                int window = 4 * tsourceRayClone.getThreadNumber();
+                int chunkNumber = (rayNumber + RAY_CHUNK - 1) / RAY_CHUNK;
                 // Open a file for rays
                 try (ShadowFiles shadowFile = new ShadowFiles(true, true, ThompsonSource.NUMBER_OF_COLUMNS, rayNumber, bFile)) {
                     bFile = shadowFile.getFile();
-                    for (int th = 0; th < tsourceRayClone.getThreadNumber(); th++) {
-                        if (isCancelled()) {
-                            break;
+                    //Building the ray tables before the rays are drawn
+                    if (tsourceRayClone.getRayTableResolution() > 0) {
+                        tsourceRayClone.getRayTable();
+                    }
+                    int next = 0, written = 0;
+                    while (written < rayNumber && !isCancelled()) {
+                        //Submitting chunks of rays with their own random streams
+                        while (next < chunkNumber && futures.size() < window) {
+                            final int size = Math.min(RAY_CHUNK, rayNumber - next * RAY_CHUNK);
+                            final ThompsonSource.RayStream stream = new ThompsonSource.RayStream(random.split());
+                            streams.add(stream);
+                            futures.add(excs.submit(() -> tsourceRayClone.getRays(stream, size, cancelled)));
+                            next++;
+                        }
+                        //Writing the chunks in order
+                        double[][] rays = futures.removeFirst().get();
+                        tsourceRayClone.addRayStream(streams.removeFirst());
+                        for (double[] ray : rays) {
+                            //Units conversions
+                            ray[0] *= 1e2;
+                            ray[1] *= 1e2;
+                            ray[2] *= 1e2;
+                            ray[10] *= 1e-2 / LaserPulse.HC;
+                            ray[11] = written;
+                            shadowFile.write(ray);
+                            setStatusBar((int) 100 * (++written + 1) / rayNumber);
                         }
-                        //Creating multiple threads to accelerate calculations
-                        excs.execute(() -> {
-                            for (int i = 0; i < rayNumber / tsourceRayClone.getThreadNumber(); i++) {
-                                try {
-                                    //Getting a ray
-                                    double[] ray = tsourceRayClone.getRay();
-                                    //Units conversions
-                                    ray[0] *= 1e2;
-                                    ray[1] *= 1e2;
-                                    ray[2] *= 1e2;
-                                    ray[10] *= 1e-2 / LaserPulse.HC;
-                                    ray[11] = i;
-                                    shadowFile.write(ray);
-                                    setStatusBar((int) 100 * (counter.incrementAndGet() + 1) / rayNumber);
-                                } catch (IOException | InterruptedException ex) {
-                                    break;
-                                }
-                            }
-                            lt.countDown();
-                        });
                     }
-                    lt.await();
                 } catch (InterruptedException ex) {
-                    excs.shutdownNow();
+                    cancelled.set(true);
+                    for (Future<double[][]> f : futures) {
+                        f.cancel(true);
+                    }
                     throw ex;
                 }
-                excs.shutdownNow();
                 return null;
             }
 
             @Override
             protected void done() {
                 jRayStopButton.setEnabled(false);
-                int cn = tsourceRayClone.getCounter() == 0 ? 1 : tsourceRayClone.getCounter();
                 jLabelPartialFlux.setText("Flux: " + tsourceRayClone.getPartialFlux()
-                        / cn * 1e-12 + " 10\u00B9\u00B2 s\u207B\u00B9");
+                        * 1e-12 + " 10\u00B9\u00B2 s\u207B\u00B9, acceptance: "
+                        + String.format("%.3g", tsourceRayClone.getAcceptanceRate())
+                        + (tsourceRayClone.getRayTableResolution() > 0
+                        ? ", table error: " + String.format("%.3g", tsourceRayClone.getRayTableError())
+                        + ", outside the table: " + String.format("%.3g", tsourceRayClone.getRayTableOutside()) : ""));
                 try {
                     get();
                 } catch (InterruptedException | CancellationException e) {
@@ -3165,82 +3179,46 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         gfForm.worker = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                final double step = (gfForm.maxValueClone - gfForm.minValueClone) / (xsize - 1);
-                final double offset = gfForm.minValueClone;
-                List<Function<Double, Double>> func = new ArrayList<>();
-                //Precise geometric factor
-                func.add(xp -> {
-                    double x = xp * gfForm.conversionValues[gfForm.selectedItemIndexClone];
-                    switch (gfForm.selectedItemIndexClone) {
+                final int index = gfForm.selectedItemIndexClone;
+                final double conv = gfForm.conversionValues[index];
+                final boolean factor = GFValueSelectionBox.getSelectedIndex() == 1;
+                //The precise and approximate values are calculated on the same clone
+                gfForm.sweep((ts, xp) -> {
+                    double x = xp * conv;
+                    switch (index) {
                         case 0:
-                            gfForm.tsourceclone.getLaserPulse().getDirection().set(2, Math.cos(x));
-                            gfForm.tsourceclone.getLaserPulse().getDirection().set(1, Math.sin(x));
+                            ts.getLaserPulse().getDirection().set(2, Math.cos(x));
+                            ts.getLaserPulse().getDirection().set(1, Math.sin(x));
                             break;
                         case 1:
-                            gfForm.tsourceclone.getLaserPulse().setDelay(x);
+                            ts.getLaserPulse().setDelay(x);
                             break;
                         case 2:
-                            gfForm.tsourceclone.getElectronBunch().getShift().set(2, x);
+                            ts.getElectronBunch().getShift().set(2, x);
                             break;
                         case 3:
-                            gfForm.tsourceclone.getElectronBunch().setBetax(x);
-                            gfForm.tsourceclone.getElectronBunch().setBetay(x);
+                            ts.getElectronBunch().setBetax(x);
+                            ts.getElectronBunch().setBetay(x);
                             break;
                         case 4:
-                            gfForm.tsourceclone.getElectronBunch().setEpsx(x);
-                            gfForm.tsourceclone.getElectronBunch().setEpsy(x);
+                            ts.getElectronBunch().setEpsx(x);
+                            ts.getElectronBunch().setEpsy(x);
                             break;
                         case 5:
-                            gfForm.tsourceclone.getLaserPulse().setRlength(x);
+                            ts.getLaserPulse().setRlength(x);
                             break;
                         case 6:
-                            gfForm.tsourceclone.getLaserPulse().setWidth(x);
-                            gfForm.tsourceclone.getElectronBunch().setxWidth(x);
-                            gfForm.tsourceclone.getElectronBunch().setyWidth(x);
+                            ts.getLaserPulse().setWidth(x);
+                            ts.getElectronBunch().setxWidth(x);
+                            ts.getElectronBunch().setyWidth(x);
                             break;
                     }
-                    gfForm.tsourceclone.calculateGeometricFactor();
-                    gfForm.tsourceclone.calculateTotalFlux();
-                    setStatusBar((xp - offset) / step / (xsize - 1));
-                    return GFValueSelectionBox.getSelectedIndex() == 1 ? gfForm.tsourceclone.getGeometricFactor()
-                            : gfForm.tsourceclone.getGeometricFactor() * gfForm.tsourceclone.getTotalFlux() * 1e-15;
-                });
-                //Approximate geopmetric factor
-                func.add(xp -> {
-                    double x = xp * gfForm.conversionValues[gfForm.selectedItemIndexClone];
-                    switch (gfForm.selectedItemIndexClone) {
-                        case 0:
-                            gfForm.tsourceclone.getLaserPulse().getDirection().set(2, Math.cos(x));
-                            gfForm.tsourceclone.getLaserPulse().getDirection().set(1, Math.sin(x));
-                            break;
-                        case 1:
-                            gfForm.tsourceclone.getLaserPulse().setDelay(x);
-                            break;
-                        case 2:
-                            gfForm.tsourceclone.getElectronBunch().getShift().set(2, x);
-                            break;
-                        case 3:
-                            gfForm.tsourceclone.getElectronBunch().setBetax(x);
-                            gfForm.tsourceclone.getElectronBunch().setBetay(x);
-                            break;
-                        case 4:
-                            gfForm.tsourceclone.getElectronBunch().setEpsx(x);
-                            gfForm.tsourceclone.getElectronBunch().setEpsy(x);
-                            break;
-                        case 5:
-                            gfForm.tsourceclone.getLaserPulse().setRlength(x);
-                            break;
-                        case 6:
-                            gfForm.tsourceclone.getLaserPulse().setWidth(x);
-                            gfForm.tsourceclone.getElectronBunch().setxWidth(x);
-                            gfForm.tsourceclone.getElectronBunch().setyWidth(x);
-                            break;
-                    }
-                    gfForm.tsourceclone.calculateTotalFlux();
-                    return GFValueSelectionBox.getSelectedIndex() == 1 ? gfForm.tsourceclone.getApproxGeometricFactor()
-                            : gfForm.tsourceclone.getApproxGeometricFactor() * gfForm.tsourceclone.getTotalFlux() * 1e-15;
-                });
-                gfForm.chartParam.setup(func, xsize, step, offset);
+                    ts.calculateGeometricFactor();
+                    ts.calculateTotalFlux();
+                    return factor ? new double[]{ts.getGeometricFactor(), ts.getApproxGeometricFactor()}
+                            : new double[]{ts.getGeometricFactor() * ts.getTotalFlux() * 1e-15,
+                                ts.getApproxGeometricFactor() * ts.getTotalFlux() * 1e-15};
+                }, 2, this::setStatusBar);
                 return null;
             }
 
@@ -3349,17 +3327,30 @@ public class ThomsonJFrame extends javax.swing.JFrame {
     private void jMenuItemNumericalActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jMenuItemNumericalActionPerformed
         // Dispalying a window to enter numerical parameters
         Object[] message = {
+            "<html>Method of calculation<br/> of the geometric factor:</html>", gfMethodBox,
             "<html>Number of points in Monte Carlo<br/> calculation of the geometric factor:</html>", gfMonteCarloNumberBox,
+            "<html>Target relative error of quasi-Monte Carlo<br/> calculation of the geometric factor:</html>", gfTargetErrorBox,
             "<html>Relative precision of <br/> the numerical integration in<br/> calculations of the brilliance and polarization:</html>", numericallPrecisionBox,
-            "<html>A multiplication factor for numerical shift<br/> in the polarization angular integral:</html>", shiftFactorBox,
-            "<html>Number of used threads:</html>", threadsNumberBox
+            "<html>Number of used threads:</html>", threadsNumberBox,
+            "<html>Seed of random numbers<br/> (0 for non-reproducible runs):</html>", seedBox,
+            "<html>Calculate cross-sections for all<br/> slider positions in background:</html>", precomputeBox
         };
         int option = JOptionPane.showConfirmDialog(null, message, "Shadow parameters", JOptionPane.OK_CANCEL_OPTION);
         if (option == JOptionPane.OK_OPTION) {
+            tsource.setGeometricFactorMethod((ThompsonSource.GeometricFactorMethod) gfMethodBox.getSelectedItem());
             tsource.setNpGeometricFactor((int) gfMonteCarloNumberBox.getValue());
+            tsource.setGeometricFactorTargetError((double) gfTargetErrorBox.getValue());
             tsource.setPrecision((double) numericallPrecisionBox.getValue());
-            tsource.setShiftfactor((double) shiftFactorBox.getValue());
             tsource.setThreadNumber((int) threadsNumberBox.getValue());
+            ThompsonSource.setSharedParallelism((int) threadsNumberBox.getValue());
+            int seed = (int) seedBox.getValue();
+            tsource.setSeed(seed == 0 ? null : Long.valueOf(seed));
+            precomputeCrossSections = precomputeBox.isSelected();
+            if (!precomputeCrossSections) {
+                stopPrecomputation();
+            } else if (!working) {
+                startPrecomputation();
+            }
         }
     }//GEN-LAST:event_jMenuItemNumericalActionPerformed
 
@@ -3370,7 +3361,8 @@ public class ThomsonJFrame extends javax.swing.JFrame {
             "X-range, mrad", rayXAngleRangeBox,
             "Y-range, mrad", rayYAngleRangeBox,
             "Minimal energy, kev", rayMinEnergyBox,
-            "Energy range, kev", rayEnergyRangeBox
+            "Energy range, kev", rayEnergyRangeBox,
+            "<html>Resolution of the ray tables<br/> (0 for rejection sampling):</html>", rayTableResolutionBox
         };
         int option = JOptionPane.showConfirmDialog(null, message, "Shadow parameters", JOptionPane.OK_CANCEL_OPTION);
         if (option == JOptionPane.OK_OPTION) {
@@ -3379,6 +3371,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
             tsource.setRayRanges((double) rayXAngleRangeBox.getValue() * 1e-3,
                     (double) rayYAngleRangeBox.getValue() * 1e-3, eMin,
                     eMin + (double) rayEnergyRangeBox.getValue() * ElectronBunch.E * 1e3);
+            tsource.setRayTableResolution((int) rayTableResolutionBox.getValue());
         }
     }//GEN-LAST:event_jMenuItemSourceParamActionPerformed
 
@@ -3559,104 +3552,69 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         polForm.worker = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                double step = (polForm.maxValueClone - polForm.minValueClone) / (xsize - 1);
-                double offset = polForm.minValueClone;
-                //A list of functions calculating intensity and polarization
-                List<Function<Double, Double>> func = new ArrayList<>();
-                //A list of auxiliary functions
-                List<Function<double[], Double>> fn = new ArrayList<>();
-                fn.add(x -> {
-                    return x[1] / x[0];
-                });
-                fn.add(x -> {
-                    return x[2] / x[0];
-                });
-                fn.add(x -> {
-                    return x[3] / x[0];
-                });
-                fn.add(x -> {
-                    return Math.sqrt((x[1] / x[0]) * (x[1] / x[0]) + (x[2] / x[0]) * (x[2] / x[0])
-                            + (x[3] / x[0]) * (x[3] / x[0]));
-                });
-                double[] rescash = new double[]{1, 0, 0, 0};
-                double[] xpcash = new double[]{-1};
-                for (int i = 0; i < ThompsonSource.NUMBER_OF_POL_PARAM; i++) {
-                    int[] ia = new int[]{i};
-                    func.add(xp -> {
-                        double[] res;
-                        double ang, e, x;
-                        x = xp * polForm.conversionValues[polForm.selectedItemIndexClone];
-                        ang = polForm.angleclone * 1e-3;
-                        e = polForm.energyclone * ElectronBunch.E * 1e3;
-                        switch (polForm.selectedItemIndexClone) {
-                            case 0:
-                                polForm.tsourceclone.getLaserPulse().getDirection().set(2, Math.cos(x));
-                                polForm.tsourceclone.getLaserPulse().getDirection().set(1, Math.sin(x));
-                                break;
-                            case 1:
-                                polForm.tsourceclone.getLaserPulse().setDelay(x);
-                                break;
-                            case 2:
-                                polForm.tsourceclone.getElectronBunch().getShift().set(2, x);
-                                break;
-                            case 3:
-                                polForm.tsourceclone.getElectronBunch().setBetax(x);
-                                polForm.tsourceclone.getElectronBunch().setBetay(x);
-                                break;
-                            case 4:
-                                polForm.tsourceclone.getElectronBunch().setEpsx(x);
-                                polForm.tsourceclone.getElectronBunch().setEpsy(x);
-                                break;
-                            case 5:
-                                polForm.tsourceclone.getElectronBunch().setEpsx(x);
-                                break;
-                            case 6:
-                                polForm.tsourceclone.getElectronBunch().setEpsy(x);
-                                break;
-                            case 7:
-                                polForm.tsourceclone.getLaserPulse().setRlength(x);
-                                break;
-                            case 8:
-                                polForm.tsourceclone.getLaserPulse().setWidth(x);
-                                polForm.tsourceclone.getElectronBunch().setxWidth(x);
-                                polForm.tsourceclone.getElectronBunch().setyWidth(x);
-                                break;
-                            case 9:
-                                polForm.tsourceclone.getElectronBunch().setDelgamma(x);
-                                break;
-                            case 10:
-                                ang = polForm.angleclone * 1e-3;
-                                e = xp * polForm.conversionValues[polForm.selectedItemIndexClone];
-                                break;
-                            case 11:
-                                ang = xp * polForm.conversionValues[polForm.selectedItemIndexClone];
-                                break;
-                        }
-                        setStatusBar((xp - offset) / step / (xsize - 1));
-                        polForm.tsourceclone.calculateTotalFlux();
-                        //If the same point, use the saved values
-                        if (xpcash[0] != xp) {
-                            try {
-                                res = polForm.tsourceclone.directionFrequencyPolarization(new BasicVector(new double[]{Math.sin(ang),
-                                    0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}), e);
-                            } catch (InterruptedException ex) {
-                                Thread.currentThread().interrupt();
-                                return fn.get(ia[0]).apply(rescash);
-                            }
-                        } else {
-                            return fn.get(ia[0]).apply(rescash);
-                        }
-                        //If NaNs use the saved values
-                        if (res[0] == 0 || new Double(res[0]).isNaN() || new Double(res[1]).isNaN()
-                                || new Double(res[2]).isNaN() || new Double(res[3]).isNaN()) {
-                            return fn.get(ia[0]).apply(rescash);
-                        }
-                        xpcash[0] = xp;
-                        System.arraycopy(res, 0, rescash, 0, 4);
-                        return fn.get(ia[0]).apply(res);
-                    });
-                }
-                polForm.chartParam.setup(func, xsize, step, offset);
+                final int index = polForm.selectedItemIndexClone;
+                final double conv = polForm.conversionValues[index];
+                //All Stocks parameters and the degree of polarization from one evaluation
+                polForm.sweep((ts, xp) -> {
+                    double[] res;
+                    double ang, e, x;
+                    x = xp * conv;
+                    ang = polForm.angleclone * 1e-3;
+                    e = polForm.energyclone * ElectronBunch.E * 1e3;
+                    switch (index) {
+                        case 0:
+                            ts.getLaserPulse().getDirection().set(2, Math.cos(x));
+                            ts.getLaserPulse().getDirection().set(1, Math.sin(x));
+                            break;
+                        case 1:
+                            ts.getLaserPulse().setDelay(x);
+                            break;
+                        case 2:
+                            ts.getElectronBunch().getShift().set(2, x);
+                            break;
+                        case 3:
+                            ts.getElectronBunch().setBetax(x);
+                            ts.getElectronBunch().setBetay(x);
+                            break;
+                        case 4:
+                            ts.getElectronBunch().setEpsx(x);
+                            ts.getElectronBunch().setEpsy(x);
+                            break;
+                        case 5:
+                            ts.getElectronBunch().setEpsx(x);
+                            break;
+                        case 6:
+                            ts.getElectronBunch().setEpsy(x);
+                            break;
+                        case 7:
+                            ts.getLaserPulse().setRlength(x);
+                            break;
+                        case 8:
+                            ts.getLaserPulse().setWidth(x);
+                            ts.getElectronBunch().setxWidth(x);
+                            ts.getElectronBunch().setyWidth(x);
+                            break;
+                        case 9:
+                            ts.getElectronBunch().setDelgamma(x);
+                            break;
+                        case 10:
+                            e = x;
+                            break;
+                        case 11:
+                            ang = x;
+                            break;
+                    }
+                    ts.calculateTotalFlux();
+                    res = ts.directionFrequencyPolarization(new BasicVector(new double[]{Math.sin(ang),
+                        0, Math.cos(ang)}), new BasicVector(new double[]{0, 0, 1}), e);
+                    //If NaNs use the values of the previous point
+                    if (res[0] == 0 || Double.isNaN(res[0]) || Double.isNaN(res[1])
+                            || Double.isNaN(res[2]) || Double.isNaN(res[3])) {
+                        return null;
+                    }
+                    double s1 = res[1] / res[0], s2 = res[2] / res[0], s3 = res[3] / res[0];
+                    return new double[]{s1, s2, s3, Math.sqrt(s1 * s1 + s2 * s2 + s3 * s3)};
+                }, ThompsonSource.NUMBER_OF_POL_PARAM, this::setStatusBar);
                 return null;
             }
 
@@ -3814,7 +3772,276 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         });
     }
 
-    private JFreeChart createChart(XYZDataset dataset, ChartParam data, String xlabel, String ylabel) {
+    /**
+     * Parameters the shape of the flux map depends on. The map is
+     * proportional to the total flux times the geometric factor
+     *
+     * @return
+     */
+    private List<Object> fluxKey() {
+        SourceSnapshot ss = tsource.getSnapshot();
+        return Arrays.asList(ss.getGamma(), xsize, ysize, xstep, ystep);
+    }
+
+    /**
+     * Parameters the X-ray energy map depends on
+     *
+     * @return
+     */
+    private List<Object> energyKey() {
+        SourceSnapshot ss = tsource.getSnapshot();
+        return Arrays.asList(ss.getGamma(), ss.getPhotonEnergy(), xsize, ysize, xstep, ystep);
+    }
+
+    /**
+     * Parameters the shape of the flux cross-section map depends on. The map
+     * is proportional to the total flux times the geometric factor
+     *
+     * @return
+     */
+    private List<Object> crossKey() {
+        return crossKey(hoffset);
+    }
+
+    /**
+     * Parameters the shape of the flux cross-section map at a given theta_x
+     * depends on
+     *
+     * @param thetax theta_x, mrad
+     * @return
+     */
+    private List<Object> crossKey(double thetax) {
+        SourceSnapshot ss = tsource.getSnapshot();
+        boolean spread = tsource.iseSpread();
+        return Arrays.asList(ss.getGamma(), ss.getDelgamma(), ss.getPhotonEnergy(), spread,
+                spread ? ss.getXSpread() : 0.0, spread ? ss.getYSpread() : 0.0, spread ? tsource.getPrecision() : 0.0,
+                xsize, ysize, estep, ystep, thetax);
+    }
+
+    /**
+     * Creating chart parameters of the flux density as a function of the
+     * X-ray photon energy and theta_y
+     *
+     * @param thetax supplier of theta_x, mrad
+     * @return
+     */
+    private ChartParam createCrossData(DoubleSupplier thetax) {
+        return new ChartParam() {
+            @Override
+            public double func(double e, double theta) {
+                Vector n, v;
+                v = new BasicVector(new double[]{0.0, 0.0, 1.0});
+                n = new BasicVector(new double[]{thetax.getAsDouble() * 1e-3, theta * 1e-3, 1.0});
+                n = n.divide(n.fold(Vectors.mkEuclideanNormAccumulator()));
+                return 1e-9 * tsource.getGeometricFactor() * tsource.directionFrequencyFlux(n, v, e * ElectronBunch.E) / 1e10;
+            }
+
+            @Override
+            public void func(double e, double[] theta, double[] u) throws InterruptedException {
+                //Without spread the flux density is interpolated from the table
+                FrequencyFluxTable table = crossTable;
+                if (table == null) {
+                    super.func(e, theta, u);
+                    return;
+                }
+                double tx = thetax.getAsDouble() * 1e-3, en = e * ElectronBunch.E;
+                double factor = 1e-9 * tsource.getGeometricFactor() * tsource.getTotalFlux() / 1e10;
+                for (int p = 0; p < theta.length; p++) {
+                    double ty = theta[p] * 1e-3;
+                    u[p] = factor * table.value(tx * tx + ty * ty, en);
+                }
+            }
+        };
+    }
+
+    /**
+     * Calculating the table of the flux density without spread covering the
+     * flux cross-sections for all slider positions unless it is already
+     * calculated for the current parameters. With spread there is no table
+     *
+     * @throws InterruptedException
+     */
+    private void updateCrossTable() throws InterruptedException {
+        synchronized (crossTableLock) {
+            if (tsource.iseSpread()) {
+                crossTable = null;
+                crossTableKey = null;
+                return;
+            }
+            //Points outside the table are evaluated directly, the energy offsets are largest in the middle
+            double thetax = xsize * xstep / 2, thetay = ystep * Math.max(ysize / 2, ysize - 1 - ysize / 2);
+            double tmax = (thetax * thetax + thetay * thetay) * 1e-6;
+            double emin = Math.min(xenergydata.func(-thetax, 0.0), xenergydata.func(thetax, 0.0)) * 1e3 - estep * (xsize / 2);
+            double emax = xenergydata.func(0.0, 0.0) * 1e3 + estep * (xsize - 1 - xsize / 2);
+            SourceSnapshot ss = tsource.getSnapshot();
+            List<Object> key = Arrays.asList(ss.getGamma(), ss.getDelgamma(), ss.getPhotonEnergy(), tmax, emin, emax);
+            if (!key.equals(crossTableKey)) {
+                crossTable = null;
+                crossTableKey = null;
+                crossTable = new FrequencyFluxTable(ss, tmax, emin * ElectronBunch.E, emax * ElectronBunch.E);
+                crossTableKey = key;
+            }
+        }
+    }
+
+    /**
+     * Storing a copy of the current flux cross-section in the cache
+     */
+    private void cacheCrossData() {
+        if (fluxcrossdata.getudata() != null && fluxcrossdata.isFor(crossKey())) {
+            final double thetax = hoffset;
+            ChartParam data = createCrossData(() -> thetax);
+            data.copy(fluxcrossdata);
+            crossCache.put(crossKey(), data);
+        }
+    }
+
+    /**
+     * Starting the background calculation of the flux cross-sections for all
+     * slider positions which are not cached yet, the nearest to the current
+     * position first. The maps are calculated one by one on the low priority
+     * pool
+     */
+    private void startPrecomputation() {
+        stopPrecomputation();
+        if (!precomputeCrossSections || xenergydata.getudata() == null) {
+            return;
+        }
+        final int start = sliderposition;
+        final double scale = tsource.getTotalFlux() * tsource.getGeometricFactor();
+        final boolean ysymmetric = tsource.getDirectionSymmetry(0.0, 0.0)[1];
+        final double tolerance = tsource.iseSpread() ? ADAPTIVE_TOLERANCE : 0;
+        precomputeWorker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                try {
+                    updateCrossTable();
+                    for (int d = 0; d <= 100; d++) {
+                        for (int position : d == 0 ? new int[]{start} : new int[]{start - d, start + d}) {
+                            if (position >= 0 && position <= 100) {
+                                precompute(position);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+
+                }
+                return null;
+            }
+
+            /**
+             * Calculating and caching the cross-section for a slider position.
+             * The map is dropped if the parameters have changed meanwhile
+             *
+             * @param position
+             * @throws InterruptedException
+             */
+            private void precompute(int position) throws InterruptedException {
+                final double thetax = xsize * xstep * (position - 50) / 100;
+                List<Object> key = crossKey(thetax);
+                if (crossCache.contains(key)) {
+                    return;
+                }
+                ChartParam data = createCrossData(() -> thetax);
+                data.setSymmetry(false, ysymmetric);
+                data.setTolerance(tolerance);
+                data.setup(ThompsonSource.getBackgroundExecutor(), xsize, ysize, estep, ystep,
+                        xenergydata.func(thetax, 0.0) * 1e3, 0.0);
+                if (key.equals(crossKey(thetax))) {
+                    data.setKey(key, scale);
+                    crossCache.put(key, data);
+                }
+            }
+
+            @Override
+            protected void done() {
+                //Checking if there are any errors in the worker thread
+                try {
+                    get();
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(ThomsonJFrame.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (InterruptedException | CancellationException ex) {
+
+                }
+            }
+        };
+        precomputeWorker.execute();
+    }
+
+    /**
+     * Stopping the background calculation of the flux cross-sections
+     */
+    private void stopPrecomputation() {
+        if (precomputeWorker != null) {
+            precomputeWorker.cancel(true);
+            precomputeWorker = null;
+        }
+    }
+
+    /**
+     * Updating the charts after a change of the slider position
+     */
+    private void updateCrossCharts() {
+        if (fluxChart != null) {
+            fluxChart.update();
+        }
+        if (fluxCrossChart != null) {
+            fluxCrossChart.fullupdate(fluxcrossdata);
+        }
+        if (xEnergyChart != null) {
+            xEnergyChart.update();
+        }
+        if (xenergycrosschart != null) {
+            xenergycrosschart.getXYPlot().getRangeAxis().setRange(xenergycrossdata.getUMin(), xenergycrossdata.getUMax());
+            xenergycrosschart.fireChartChanged();
+        }
+    }
+
+    /**
+     * Creating or updating the flux chart
+     */
+    private void showFluxChart() {
+        if (fluxdata.getudata() == null) {
+            return;
+        }
+        if (fluxChart != null) {
+            fluxChart.fullupdate(fluxdata);
+        } else {
+            fluxChart = new ColorChart(fluxdata, "theta_x, mrad", "theta_y, mrad", "mrad\u207B\u00B2\u00B7s\u207B\u00B9\u00B710\u00B9\u2070",
+                    jPanel_xflux_left, 0.75, true);
+        }
+    }
+
+    /**
+     * Creating or updating the flux cross-section chart
+     */
+    private void showFluxCrossChart() {
+        if (fluxcrossdata.getudata() == null) {
+            return;
+        }
+        if (fluxCrossChart != null) {
+            fluxCrossChart.fullupdate(fluxcrossdata);
+        } else {
+            fluxCrossChart = new ColorChart(fluxcrossdata, "X-ray energy, eV", "theta_y, mrad",
+                    "mrad\u207B\u00B2\u00B7s\u207B\u00B9\u00B70.1%\u00B710\u00B9\u2070", jPanel_xflux_right, 0.75, false);
+        }
+    }
+
+    /**
+     * Creating or updating the X-ray energy chart
+     */
+    private void showXEnergyChart() {
+        if (xenergydata.getudata() == null) {
+            return;
+        }
+        if (xEnergyChart != null) {
+            xEnergyChart.fullupdate(xenergydata);
+        } else {
+            xEnergyChart = new ColorChart(xenergydata, "theta_x, mrad", "theta_y, mrad", "kev", jPanel_xenergy_left, 0.75, true);
+        }
+    }
+
+    private JFreeChart createChart(XYDataset dataset, ChartParam data, String xlabel, String ylabel) {
         /* X axis */
         NumberAxis xAxis = new NumberAxis(xlabel);
         xAxis.setStandardTickUnits(NumberAxis.createStandardTickUnits());
@@ -3828,11 +4055,8 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         yAxis.setUpperMargin(0.0);
         yAxis.setAutoRangeIncludesZero(false);
         /* Renderer */
-        XYBlockRenderer renderer = new XYBlockRenderer();
-        PaintScale scale = new JetPaintScale(0, data.getumax());
-        renderer.setPaintScale(scale);
-        renderer.setBlockHeight(data.getystep());
-        renderer.setBlockWidth(data.getxstep());
+        HeatMapRenderer renderer = new HeatMapRenderer();
+        renderer.setData(data, new JetPaintScale(0, data.getumax()));
         /* Plot creation */
         XYPlot plot = new XYPlot(dataset, xAxis, yAxis, renderer);
         plot.setBackgroundPaint(Color.white);
@@ -3944,8 +4168,15 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         return chart;
     }
 
-    private XYZDataset createDataset(final ChartParam data, final boolean linemark) {
-        return new XYZDataset() {
+    /**
+     * A dataset of one item at the center of a map. The map itself is drawn
+     * from the data by the heat map renderer
+     *
+     * @param data
+     * @return
+     */
+    private XYDataset createDataset(final ChartParam data) {
+        return new XYDataset() {
             @Override
             public int getSeriesCount() {
                 return 1;
@@ -3953,7 +4184,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
 
             @Override
             public int getItemCount(int series) {
-                return data.getxsize() * data.getysize();
+                return data.getudata() == null ? 0 : 1;
             }
 
             @Override
@@ -3963,11 +4194,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
 
             @Override
             public double getXValue(int series, int item) {
-                return (getXindex(series, item) - data.getxsize() / 2) * data.getxstep() + data.getxoffset();
-            }
-
-            public int getXindex(int series, int item) {
-                return item / data.getysize();
+                return data.getxoffset();
             }
 
             @Override
@@ -3977,29 +4204,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
 
             @Override
             public double getYValue(int series, int item) {
-                return (getYindex(series, item) - data.getysize() / 2) * data.getystep() + data.getyoffset();
-            }
-
-            public int getYindex(int series, int item) {
-                return item - (item / data.getysize()) * data.getysize();
-            }
-
-            @Override
-            public Number getZ(int series, int item) {
-                return new Double(getZValue(series, item));
-            }
-
-            @Override
-            public double getZValue(int series, int item) {
-                int x = getXindex(series, item);
-                int y = getYindex(series, item);
-                if (!linemark) {
-                    return data.getudata()[x][y];
-                } else if (x == (int) (data.getxsize() - 1) * sliderposition / 100) {
-                    return data.getumax() / 2;
-                } else {
-                    return data.getudata()[x][y];
-                }
+                return data.getyoffset();
             }
 
             @Override
@@ -4034,7 +4239,7 @@ public class ThomsonJFrame extends javax.swing.JFrame {
 
             @Override
             public DomainOrder getDomainOrder() {
-                return DomainOrder.ASCENDING;
+                return DomainOrder.NONE;
             }
         };
     }
@@ -4144,6 +4349,28 @@ public class ThomsonJFrame extends javax.swing.JFrame {
         };
     }
 
+    /**
+     * Filling the arrays of normalized direction components for a column of
+     * observation angles in mrad
+     *
+     * @param thetax x angle
+     * @param thetay array of y angles
+     * @param nx
+     * @param ny
+     * @param nz
+     */
+    private static void directionArrays(double thetax, double[] thetay,
+            double[] nx, double[] ny, double[] nz) {
+        double tx = thetax * 1e-3;
+        for (int p = 0; p < thetay.length; p++) {
+            double ty = thetay[p] * 1e-3;
+            double norm = 1 / Math.sqrt(tx * tx + ty * ty + 1.0);
+            nx[p] = tx * norm;
+            ny[p] = ty * norm;
+            nz[p] = norm;
+        }
+    }
+
     /**
      * Loading the Thomson parameters form a file
      *